@@ -0,0 +1,114 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the hit aggregation and filtering steps of ImmunoGenotyper, using synthetic read pairs that each hit between 1 and 500 alleles.
+ *
+ * Run with: ./gradlew jmh
+ * Arguments can be passed to JMH using -PjmhArgs, for example: ./gradlew jmh -PjmhArgs="-p alleles=1000 ImmunoGenotyperBenchmark.addRead"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImmunoGenotyperBenchmark {
+    @Param({"2000", "20000"})
+    int alleles;
+
+    @Param({"50000"})
+    int readPairs;
+
+    @Param({"true", "false"})
+    boolean requireValidPair;
+
+    private SyntheticHits data;
+    private List<ReadAlignmentsTracker> trackers;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = new SyntheticHits(alleles, readPairs, 1);
+        trackers = data.createTrackers();
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A tracker holding all read pairs, with its hit table already built.  This is rebuilt before each invocation, since filtering modifies the tracker.
+     */
+    @State(Scope.Thread)
+    public static class PopulatedTracker {
+        ReferenceMatchTracker refTracker;
+
+        @Setup(Level.Invocation)
+        public void populate(ImmunoGenotyperBenchmark benchmark) {
+            refTracker = benchmark.addRead();
+            refTracker.getHitTable();
+        }
+    }
+
+    /**
+     * As above, after filtering by reference, which is the input the lineage filter sees in practice.
+     */
+    @State(Scope.Thread)
+    public static class ReferenceFilteredTracker {
+        ReferenceMatchTracker refTracker;
+
+        @Setup(Level.Invocation)
+        public void populate(ImmunoGenotyperBenchmark benchmark) {
+            refTracker = benchmark.addRead();
+            refTracker.filterByReference(5, 0.01, message -> {});
+        }
+    }
+
+    @Benchmark
+    public void getHits(Blackhole bh) {
+        for (ReadAlignmentsTracker tracker : trackers) {
+            bh.consume(tracker.getHits(requireValidPair));
+        }
+    }
+
+    @Benchmark
+    public ReferenceMatchTracker addRead() {
+        ReferenceMatchTracker refTracker = new ReferenceMatchTracker(data.getDictionary(), requireValidPair);
+        for (ReadAlignmentsTracker tracker : trackers) {
+            refTracker.addRead(tracker);
+        }
+
+        return refTracker;
+    }
+
+    @Benchmark
+    public HitTable filterByReference(PopulatedTracker state, Blackhole bh) {
+        state.refTracker.filterByReference(5, 0.01, bh::consume);
+
+        return state.refTracker.getHitTable();
+    }
+
+    @Benchmark
+    public HitTable filterByLineage(ReferenceFilteredTracker state, Blackhole bh) {
+        state.refTracker.filterByLineage(data.getNameToLineageMap(), 0.01, bh::consume, null);
+
+        return state.refTracker.getHitTable();
+    }
+
+    @Benchmark
+    public HitTable filterByLineageParallel(ReferenceFilteredTracker state, Blackhole bh) {
+        state.refTracker.filterByLineage(data.getNameToLineageMap(), 0.01, bh::consume, executor);
+
+        return state.refTracker.getHitTable();
+    }
+}
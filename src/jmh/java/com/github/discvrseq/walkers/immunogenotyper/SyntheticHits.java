@@ -0,0 +1,114 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import java.util.*;
+
+/**
+ * Generates a reference of alleles grouped into lineages, and read pairs aligning to them with realistic ambiguity.
+ * Most read pairs hit a handful of closely related alleles, while a long tail hit up to {@link #MAX_HITS_PER_READ} alleles, spanning several lineages.
+ */
+public class SyntheticHits {
+    public static final int MAX_HITS_PER_READ = 500;
+
+    private static final int ALLELES_PER_LINEAGE = 25;
+    private static final int MIN_ALIGNMENT_LENGTH = 40;
+
+    private final SAMSequenceDictionary dictionary;
+    private final Map<String, String> nameToLineageMap = new HashMap<>();
+    private final List<int[]> forwardHits = new ArrayList<>();
+    private final List<int[]> reverseHits = new ArrayList<>();
+    private final List<int[]> nms = new ArrayList<>();
+
+    public SyntheticHits(int alleles, int readPairs, long seed) {
+        Random random = new Random(seed);
+
+        List<SAMSequenceRecord> sequences = new ArrayList<>(alleles);
+        for (int i = 0; i < alleles; i++) {
+            String lineage = "Lineage" + (i / ALLELES_PER_LINEAGE);
+            String name = lineage + "*" + (i % ALLELES_PER_LINEAGE);
+            sequences.add(new SAMSequenceRecord(name, 300));
+            nameToLineageMap.put(name, lineage);
+        }
+        dictionary = new SAMSequenceDictionary(sequences);
+
+        //a fixed pool of distinct hit sets, so that read pairs share hit sets as they would with real data
+        List<int[]> hitSetPool = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, readPairs / 50); i++) {
+            hitSetPool.add(randomHitSet(random, alleles));
+        }
+
+        for (int i = 0; i < readPairs; i++) {
+            int[] hits = hitSetPool.get(random.nextInt(hitSetPool.size()));
+
+            //the mate usually aligns to the same alleles, though occasionally drops some
+            int[] mateHits = random.nextInt(10) == 0 && hits.length > 1 ? Arrays.copyOf(hits, hits.length - 1) : hits;
+
+            //most alignments are perfect, with a few alleles hit with mismatches
+            int[] nm = new int[hits.length];
+            for (int j = 0; j < nm.length; j++) {
+                nm[j] = random.nextInt(20) == 0 ? 1 : 0;
+            }
+
+            forwardHits.add(hits);
+            reverseHits.add(mateHits);
+            nms.add(nm);
+        }
+    }
+
+    private static int[] randomHitSet(Random random, int alleles) {
+        //skew towards small sets: half hit at most a few alleles, with a tail up to the maximum
+        int size = random.nextBoolean() ? 1 + random.nextInt(4) : 1 + (int) Math.min(MAX_HITS_PER_READ - 1, Math.abs(random.nextGaussian()) * MAX_HITS_PER_READ / 4);
+        size = Math.min(size, alleles);
+
+        //related alleles are adjacent in the dictionary, so draw from a window near a random starting allele
+        int window = Math.min(alleles, Math.max(size * 2, ALLELES_PER_LINEAGE));
+        int start = random.nextInt(alleles - window + 1);
+        Set<Integer> ret = new TreeSet<>();
+        while (ret.size() < size) {
+            ret.add(start + random.nextInt(window));
+        }
+
+        return ret.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public SAMSequenceDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public Map<String, String> getNameToLineageMap() {
+        return nameToLineageMap;
+    }
+
+    public int getReadPairs() {
+        return forwardHits.size();
+    }
+
+    /**
+     * @return A tracker holding the alignments of both mates of the given read pair, using a mismatch tolerance of 1
+     */
+    public ReadAlignmentsTracker createTracker(int readPair) {
+        ReadAlignmentsTracker tracker = new ReadAlignmentsTracker("read" + readPair, MIN_ALIGNMENT_LENGTH, 1);
+        int[] nm = nms.get(readPair);
+        int[] hits = forwardHits.get(readPair);
+        for (int j = 0; j < hits.length; j++) {
+            tracker.addAlignment(hits[j], nm[j], 150, true, false);
+        }
+
+        for (int contigIndex : reverseHits.get(readPair)) {
+            tracker.addAlignment(contigIndex, 0, 150, false, true);
+        }
+
+        return tracker;
+    }
+
+    public List<ReadAlignmentsTracker> createTrackers() {
+        List<ReadAlignmentsTracker> ret = new ArrayList<>(getReadPairs());
+        for (int i = 0; i < getReadPairs(); i++) {
+            ret.add(createTracker(i));
+        }
+
+        return ret;
+    }
+}
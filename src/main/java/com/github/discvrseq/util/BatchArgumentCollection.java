@@ -0,0 +1,18 @@
+package com.github.discvrseq.util;
+
+import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.Hidden;
+
+import java.io.Serializable;
+
+/**
+ * The arguments controlling how reads are divided into batches for a pool of workers (see {@link OrderedWorkQueue}).  These are shared by the tools that process read pairs
+ * in parallel using --threads.
+ */
+public class BatchArgumentCollection implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Hidden
+    @Argument(fullName = "readPairsPerBatch", doc = "If threads is greater than one, the number of read pairs handed to a worker at a time.  This is intended for testing, where a small value exercises the ordering of many batches.", optional = true, minValue = 1)
+    public int readPairsPerBatch = 5000;
+}
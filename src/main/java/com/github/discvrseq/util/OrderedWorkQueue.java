@@ -0,0 +1,79 @@
+package com.github.discvrseq.util;
+
+import org.broadinstitute.hellbender.exceptions.GATKException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs tasks on a pool of workers, and hands their results to the submitting thread in the order the tasks were submitted.  This is used to process batches of reads in parallel
+ * while writing or merging the results exactly as in single-threaded mode.  At most twice as many tasks as workers are pending, so memory is bounded if the workers fall behind:
+ * beyond this, {@link #submit(Callable)} waits for the oldest task and handles its result before returning.
+ *
+ * Instances are not thread-safe, and should only be used by the submitting thread.
+ * @param <T> The result of each task
+ * @param <E> The checked exception thrown when handling a result, or RuntimeException if there is none
+ */
+public class OrderedWorkQueue<T, E extends Exception> {
+    @FunctionalInterface
+    public interface ResultHandler<T, E extends Exception> {
+        void handle(T result) throws E;
+    }
+
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final ResultHandler<T, E> handler;
+    private final Deque<Future<T>> pending = new ArrayDeque<>();
+
+    /**
+     * @param executor The pool of workers, which is not shut down by this queue
+     * @param threads The number of workers in the pool
+     * @param handler Called on the submitting thread with the result of each task, in the order submitted
+     */
+    public OrderedWorkQueue(ExecutorService executor, int threads, ResultHandler<T, E> handler) {
+        this.executor = executor;
+        this.maxPending = 2 * threads;
+        this.handler = handler;
+    }
+
+    public void submit(Callable<T> task) throws E {
+        pending.add(executor.submit(task));
+        while (pending.size() > maxPending) {
+            handler.handle(getResult(pending.poll()));
+        }
+    }
+
+    /**
+     * Waits for every pending task, handling the results in order.
+     */
+    public void finish() throws E {
+        while (!pending.isEmpty()) {
+            handler.handle(getResult(pending.poll()));
+        }
+    }
+
+    /**
+     * Waits for a task to complete.  If the task failed with a RuntimeException, such as a UserException, this is rethrown as-is, and otherwise the failure is wrapped in a GATKException.
+     * @return The result of the task
+     */
+    public static <V> V getResult(Future<V> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GATKException(e.getMessage(), e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+
+            throw new GATKException(e.getMessage(), e);
+        }
+    }
+}
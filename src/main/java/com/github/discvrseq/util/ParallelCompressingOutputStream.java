@@ -0,0 +1,260 @@
+package com.github.discvrseq.util;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.IOUtil;
+import org.broadinstitute.hellbender.exceptions.UserException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF, compressing blocks in parallel on a pool of workers rather than serially on the writing thread.  This is intended for FASTQ output, where compression is often the limiting step.
+ * Data is split into blocks of {@link BlockCompressedStreamConstants#DEFAULT_UNCOMPRESSED_BLOCK_SIZE} bytes, and compressed blocks are written in input order, ending with the standard empty block.
+ * The output can be read by any gzip reader, as well as by BGZF readers.  The number of blocks being compressed is bounded, so the writing thread waits if the workers fall behind.
+ *
+ * Instances are not thread-safe, and should be written by one thread.
+ */
+public class ParallelCompressingOutputStream extends OutputStream {
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    //the space available for deflated data, after the header and footer
+    private static final int MAX_DEFLATED_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+    private static final AtomicInteger STREAM_NUMBER = new AtomicInteger();
+
+    private final File file;
+    private final OutputStream out;
+    private final int threads;
+    private final ExecutorService executor;
+    private final ThreadLocal<Deflater[]> deflaters;
+    private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+    private byte[] buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    private int position = 0;
+    private boolean closed = false;
+
+    /**
+     * Opens a file for writing.  If the file has a gzip or BGZF extension (see {@link IOUtil#hasBlockCompressedExtension(File)}), the output is BGZF compressed in parallel,
+     * otherwise it is written uncompressed.
+     * @param threads The number of threads used to compress blocks
+     * @param compressionLevel The deflate compression level, from 0 (none) to 9 (smallest)
+     */
+    public static OutputStream open(File file, int threads, int compressionLevel) {
+        if (IOUtil.hasBlockCompressedExtension(file)) {
+            try {
+                //blocks are written whole, so this does not need a buffer
+                return new ParallelCompressingOutputStream(new FileOutputStream(file), file, threads, compressionLevel);
+            }
+            catch (IOException e) {
+                throw new UserException.CouldNotCreateOutputFile(file, e);
+            }
+        }
+
+        return IOUtil.maybeBufferOutputStream(IOUtil.openFileForWriting(file));
+    }
+
+    /**
+     * @param out The destination of the compressed data, which is closed with this stream
+     * @param file The destination file, used in error messages
+     */
+    public ParallelCompressingOutputStream(OutputStream out, File file, int threads, int compressionLevel) {
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+
+        this.file = file;
+        this.out = out;
+        this.threads = Math.max(1, threads);
+
+        String prefix = "compress-" + STREAM_NUMBER.incrementAndGet() + "-";
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, prefix + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+
+            return t;
+        };
+        this.executor = Executors.newFixedThreadPool(this.threads, threadFactory);
+
+        //each worker holds a deflater at the requested level, and one without compression for blocks that do not shrink
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater[]{
+                BlockCompressedOutputStream.getDefaultDeflaterFactory().makeDeflater(compressionLevel, true),
+                BlockCompressedOutputStream.getDefaultDeflaterFactory().makeDeflater(Deflater.NO_COMPRESSION, true)
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        buffer[position++] = (byte) b;
+        if (position == buffer.length) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, n);
+            position += n;
+            off += n;
+            len -= n;
+
+            if (position == buffer.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed: " + file.getPath());
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] block = buffer;
+        final int length = position;
+        pendingBlocks.add(executor.submit(() -> compressBlock(block, length)));
+
+        //the buffer is owned by the task, so a new one is needed
+        buffer = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        position = 0;
+
+        while (pendingBlocks.size() > BLOCKS_PER_THREAD * threads) {
+            out.write(getResult(pendingBlocks.poll()));
+        }
+    }
+
+    private byte[] compressBlock(byte[] block, int length) throws IOException {
+        Deflater[] d = deflaters.get();
+        byte[] deflated = new byte[MAX_DEFLATED_SIZE];
+        int deflatedSize = deflate(d[0], block, length, deflated);
+        if (deflatedSize == -1) {
+            deflatedSize = deflate(d[1], block, length, deflated);
+            if (deflatedSize == -1) {
+                throw new IOException("Unable to fit a block into the BGZF block size when writing: " + file.getPath());
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, length);
+
+        int totalSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + deflatedSize + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        byte[] ret = new byte[totalSize];
+        ret[0] = BlockCompressedStreamConstants.GZIP_ID1;
+        ret[1] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+        ret[2] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+        ret[3] = (byte) BlockCompressedStreamConstants.GZIP_FLG;
+        //bytes 4-7 are the modification time, which is not set
+        ret[8] = (byte) BlockCompressedStreamConstants.GZIP_XFL;
+        ret[9] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+        writeShort(ret, 10, BlockCompressedStreamConstants.GZIP_XLEN);
+        ret[12] = BlockCompressedStreamConstants.BGZF_ID1;
+        ret[13] = BlockCompressedStreamConstants.BGZF_ID2;
+        writeShort(ret, 14, BlockCompressedStreamConstants.BGZF_LEN);
+        writeShort(ret, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, totalSize - 1);
+        System.arraycopy(deflated, 0, ret, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, deflatedSize);
+
+        int footerStart = totalSize - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        writeInt(ret, footerStart, (int) crc.getValue());
+        writeInt(ret, footerStart + 4, length);
+
+        return ret;
+    }
+
+    /**
+     * @return The size of the deflated data, or -1 if it does not fit
+     */
+    private static int deflate(Deflater deflater, byte[] block, int length, byte[] deflated) {
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        int size = deflater.deflate(deflated, 0, deflated.length);
+
+        return deflater.finished() ? size : -1;
+    }
+
+    private static void writeShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+        writeShort(b, offset, value);
+        writeShort(b, offset + 2, value >> 16);
+    }
+
+    private byte[] getResult(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing file: " + file.getPath());
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+
+            throw new IOException("Error writing file: " + file.getPath(), e.getCause());
+        }
+    }
+
+    /**
+     * Writes all complete blocks to the underlying stream.  The partial block being filled is not written, since this would split the data into more, smaller, blocks.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pendingBlocks.isEmpty()) {
+            out.write(getResult(pendingBlocks.poll()));
+        }
+
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            if (position > 0) {
+                submitBlock();
+            }
+
+            while (!pendingBlocks.isEmpty()) {
+                out.write(getResult(pendingBlocks.poll()));
+            }
+
+            out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        }
+        finally {
+            closed = true;
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.github.discvrseq.util;
+
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.BlockGunzipper;
+import htsjdk.samtools.util.IOUtil;
+import org.broadinstitute.hellbender.exceptions.UserException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a file that may be compressed, decompressing on background threads so the caller only parses the decompressed data.  This is intended for FASTQ input, where decompression on the
+ * reading thread is often the limiting step.
+ * <ul>
+ *     <li>BGZF files are split into their compressed blocks on a read-ahead thread, and the blocks are inflated in parallel by a pool of workers.</li>
+ *     <li>Other gzip files cannot be split, so these are decompressed sequentially on a read-ahead thread.</li>
+ *     <li>Uncompressed files are read directly.</li>
+ * </ul>
+ * The format is detected from the content of the file, not its extension.  In both compressed cases, the decompressed data is handed over in input order through a bounded queue,
+ * so the memory used is limited irrespective of how far the decompression runs ahead of the caller.
+ *
+ * BGZF and uncompressed files can also be read from an offset, and for BGZF the virtual file pointer of the next byte is available (see {@link #getVirtualFilePointer()}),
+ * which allows record-aligned offsets to be indexed and used to read a part of the file, such as to divide a FASTQ into shards.
+ */
+public class ParallelDecompressingInputStream extends InputStream {
+    private static final int GZIP_CHUNK_SIZE = 1 << 18;
+    private static final int GZIP_QUEUE_SIZE = 16;
+    private static final int BGZF_BLOCKS_PER_THREAD = 8;
+
+    private static final Future<Block> END = CompletableFuture.completedFuture(new Block(-1, 0, new byte[0]));
+    private static final AtomicInteger STREAM_NUMBER = new AtomicInteger();
+
+    private final File file;
+    private final InputStream in;
+    private final ExecutorService executor;
+    private final boolean isBgzf;
+    private final long startAddress;
+    private final BlockingQueue<Future<Block>> queue;
+
+    private byte[] current = new byte[0];
+    private int position = 0;
+    private boolean finished = false;
+
+    //for BGZF, the address of the compressed block holding current, and the address following it
+    private long currentAddress;
+    private long nextAddress;
+
+    private enum Format {
+        BGZF,
+        GZIP,
+        UNCOMPRESSED
+    }
+
+    private static final class Block {
+        private final long address;
+        private final int compressedLength;
+        private final byte[] data;
+
+        private Block(long address, int compressedLength, byte[] data) {
+            this.address = address;
+            this.compressedLength = compressedLength;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if needed.
+     * @param threads The number of threads used to inflate BGZF blocks.  This is in addition to the thread reading the file, and has no effect on other formats.
+     * @return The decompressed data
+     */
+    public static InputStream open(File file, int threads) {
+        return open(file, threads, 0L);
+    }
+
+    /**
+     * Opens a file for reading from an offset, decompressing it if needed.  Other gzip files cannot be read from an offset, since they have no independent blocks.
+     * @param threads The number of threads used to inflate BGZF blocks.  This is in addition to the thread reading the file, and has no effect on other formats.
+     * @param offset For BGZF, the virtual file pointer of the first byte to read (see {@link #getVirtualFilePointer()}), or for an uncompressed file, the byte offset
+     * @return The decompressed data
+     */
+    public static InputStream open(File file, int threads, long offset) {
+        IOUtil.assertFileIsReadable(file);
+
+        //the file is only opened once, so that pipes and process substitutions can be read
+        FileInputStream fileStream = null;
+        try {
+            fileStream = new FileInputStream(file);
+            Format format = offset == 0 ? null : positionAt(fileStream, file, offset);
+
+            BufferedInputStream in = new BufferedInputStream(fileStream, Defaults.BUFFER_SIZE);
+            if (format == null) {
+                format = getFormat(in);
+            }
+
+            switch (format) {
+                case BGZF:
+                    long address = BlockCompressedFilePointerUtil.getBlockAddress(offset);
+                    ParallelDecompressingInputStream ret = new ParallelDecompressingInputStream(file, in, Math.max(1, threads), true, address);
+                    ret.skipWithinBlock(BlockCompressedFilePointerUtil.getBlockOffset(offset));
+
+                    return ret;
+                case GZIP:
+                    return new ParallelDecompressingInputStream(file, in, 0, false, 0);
+                default:
+                    return in;
+            }
+        }
+        catch (IOException e) {
+            closeQuietly(fileStream);
+            throw new UserException.CouldNotReadInputFile(file.toPath(), e);
+        }
+        catch (RuntimeException e) {
+            closeQuietly(fileStream);
+            throw e;
+        }
+    }
+
+    /**
+     * Positions a regular file at the offset, which for BGZF is a virtual file pointer.  Since this is not the start of the file, the format is detected using a positional read.
+     */
+    private static Format positionAt(FileInputStream fileStream, File file, long offset) throws IOException {
+        if (!file.isFile()) {
+            throw new UserException.BadInput("Only regular files can be read from an offset, which is not the case for: " + file.getPath() + ".  Pipes cannot be read from an offset.");
+        }
+
+        FileChannel channel = fileStream.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) == -1) {
+                break;
+            }
+        }
+
+        Format format = getFormat(new ByteArrayInputStream(header.array(), 0, header.position()));
+        switch (format) {
+            case BGZF:
+                channel.position(BlockCompressedFilePointerUtil.getBlockAddress(offset));
+                break;
+            case GZIP:
+                throw new UserException.BadInput("Only BGZF or uncompressed files can be read from an offset, which is not the case for: " + file.getPath());
+            default:
+                channel.position(offset);
+        }
+
+        return format;
+    }
+
+    /**
+     * Detects the format from the start of the stream, which must support mark, and is reset to where it began.
+     */
+    private static Format getFormat(InputStream in) throws IOException {
+        if (BlockCompressedInputStream.isValidFile(in)) {
+            return Format.BGZF;
+        }
+        else if (IOUtil.isGZIPInputStream(in)) {
+            return Format.GZIP;
+        }
+
+        return Format.UNCOMPRESSED;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null) {
+            return;
+        }
+
+        try {
+            in.close();
+        }
+        catch (IOException ignored) {
+            //the original error is more useful
+        }
+    }
+
+    private ParallelDecompressingInputStream(File file, InputStream in, int threads, boolean isBgzf, long startAddress) {
+        this.file = file;
+        this.in = in;
+        this.isBgzf = isBgzf;
+        this.startAddress = startAddress;
+        this.currentAddress = startAddress;
+        this.nextAddress = startAddress;
+
+        String prefix = "decompress-" + STREAM_NUMBER.incrementAndGet() + "-";
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, prefix + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+
+            return t;
+        };
+
+        //one thread reads the file, and for BGZF the remainder inflate blocks
+        this.executor = Executors.newFixedThreadPool(threads + 1, threadFactory);
+        if (isBgzf) {
+            this.queue = new ArrayBlockingQueue<>(threads * BGZF_BLOCKS_PER_THREAD);
+            executor.execute(this::readBgzfBlocks);
+        }
+        else {
+            this.queue = new ArrayBlockingQueue<>(GZIP_QUEUE_SIZE);
+            executor.execute(this::readGzip);
+        }
+    }
+
+    private void readBgzfBlocks() {
+        ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> BlockGunzipper.getDefaultInflaterFactory().makeInflater(true));
+        try {
+            long address = startAddress;
+            byte[] block;
+            while ((block = readBgzfBlock()) != null) {
+                final byte[] compressed = block;
+                final long blockAddress = address;
+                queue.put(executor.submit(() -> new Block(blockAddress, compressed.length, inflateBgzfBlock(compressed, inflaters.get()))));
+                address += block.length;
+            }
+
+            queue.put(END);
+        }
+        catch (InterruptedException e) {
+            //the stream was closed
+        }
+        catch (Exception e) {
+            putFailure(e);
+        }
+    }
+
+    /**
+     * @return The next compressed block, including its header and footer, or null at the end of the file
+     */
+    private byte[] readBgzfBlock() throws IOException {
+        byte[] header = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+        int headerLength = readFully(header, 0, header.length);
+        if (headerLength == 0) {
+            return null;
+        }
+        else if (headerLength < header.length || !isBgzfHeader(header)) {
+            throw new IOException("Invalid BGZF block header in file: " + file.getPath());
+        }
+
+        int blockLength = ((header[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET] & 0xff) | ((header[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET + 1] & 0xff) << 8)) + 1;
+        if (blockLength < header.length + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH) {
+            throw new IOException("Invalid BGZF block length in file: " + file.getPath());
+        }
+
+        byte[] block = new byte[blockLength];
+        System.arraycopy(header, 0, block, 0, header.length);
+        if (readFully(block, header.length, blockLength - header.length) < blockLength - header.length) {
+            throw new EOFException("Truncated BGZF block in file: " + file.getPath());
+        }
+
+        return block;
+    }
+
+    private static boolean isBgzfHeader(byte[] header) {
+        return header[0] == BlockCompressedStreamConstants.GZIP_ID1 && (header[1] & 0xff) == BlockCompressedStreamConstants.GZIP_ID2 && header[2] == BlockCompressedStreamConstants.GZIP_CM_DEFLATE &&
+                (header[3] & BlockCompressedStreamConstants.GZIP_FLG) != 0 && header[10] == BlockCompressedStreamConstants.GZIP_XLEN &&
+                header[12] == BlockCompressedStreamConstants.BGZF_ID1 && header[13] == BlockCompressedStreamConstants.BGZF_ID2 && header[14] == BlockCompressedStreamConstants.BGZF_LEN;
+    }
+
+    private byte[] inflateBgzfBlock(byte[] block, Inflater inflater) throws IOException {
+        int footerStart = block.length - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        int uncompressedLength = (block[footerStart + 4] & 0xff) | ((block[footerStart + 5] & 0xff) << 8) | ((block[footerStart + 6] & 0xff) << 16) | ((block[footerStart + 7] & 0xff) << 24);
+
+        byte[] ret = new byte[uncompressedLength];
+        try {
+            inflater.reset();
+            inflater.setInput(block, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH, footerStart - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+            int inflated = 0;
+            while (inflated < uncompressedLength) {
+                int n = inflater.inflate(ret, inflated, uncompressedLength - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                inflated += n;
+            }
+
+            if (inflated != uncompressedLength) {
+                throw new IOException("Did not inflate the expected number of bytes from a BGZF block in file: " + file.getPath());
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Invalid BGZF block in file: " + file.getPath(), e);
+        }
+
+        return ret;
+    }
+
+    private void readGzip() {
+        try (InputStream gzip = new GZIPInputStream(in, Defaults.BUFFER_SIZE)) {
+            while (true) {
+                byte[] chunk = new byte[GZIP_CHUNK_SIZE];
+                int length = 0;
+                int n;
+                while (length < chunk.length && (n = gzip.read(chunk, length, chunk.length - length)) != -1) {
+                    length += n;
+                }
+
+                if (length > 0) {
+                    queue.put(CompletableFuture.completedFuture(new Block(-1, 0, length == chunk.length ? chunk : Arrays.copyOf(chunk, length))));
+                }
+
+                if (length < chunk.length) {
+                    break;
+                }
+            }
+
+            queue.put(END);
+        }
+        catch (InterruptedException e) {
+            //the stream was closed
+        }
+        catch (Exception e) {
+            putFailure(e);
+        }
+    }
+
+    private void putFailure(Exception e) {
+        CompletableFuture<Block> failure = new CompletableFuture<>();
+        failure.completeExceptionally(e);
+        try {
+            queue.put(failure);
+        }
+        catch (InterruptedException ignored) {
+            //the stream was closed
+        }
+    }
+
+    private int readFully(byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, offset + total, length - total);
+            if (n == -1) {
+                break;
+            }
+
+            total += n;
+        }
+
+        return total;
+    }
+
+    /**
+     * @return False if there is no more data
+     */
+    private boolean ensureData() throws IOException {
+        while (position == current.length) {
+            if (finished) {
+                return false;
+            }
+
+            Future<Block> next;
+            try {
+                next = queue.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading file: " + file.getPath());
+            }
+
+            if (next == END) {
+                finished = true;
+                return false;
+            }
+
+            Block block = getResult(next);
+            current = block.data;
+            position = 0;
+            currentAddress = block.address;
+            nextAddress = block.address + block.compressedLength;
+        }
+
+        return true;
+    }
+
+    private void skipWithinBlock(int offset) throws IOException {
+        if (offset > 0 && (!ensureData() || offset > current.length)) {
+            throw new IOException("Invalid offset within BGZF block in file: " + file.getPath());
+        }
+
+        position += offset;
+    }
+
+    /**
+     * @return True if the file is BGZF, in which case {@link #getVirtualFilePointer()} is supported
+     */
+    public boolean isBlockCompressed() {
+        return isBgzf;
+    }
+
+    /**
+     * @return The BGZF virtual file pointer of the next byte to be read, which is the address of its compressed block and its offset within that block once decompressed.
+     * At the end of the file, this is the address following the last block.
+     */
+    public long getVirtualFilePointer() throws IOException {
+        if (!isBgzf) {
+            throw new UnsupportedOperationException("Virtual file pointers are only available for BGZF files: " + file.getPath());
+        }
+
+        if (!ensureData()) {
+            return BlockCompressedFilePointerUtil.makeFilePointer(nextAddress);
+        }
+
+        return BlockCompressedFilePointerUtil.makeFilePointer(currentAddress, position);
+    }
+
+    private Block getResult(Future<Block> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading file: " + file.getPath());
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+
+            throw new IOException("Error reading file: " + file.getPath(), e.getCause());
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        else if (!ensureData()) {
+            return -1;
+        }
+
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        //interrupts the read-ahead thread if it is waiting on the queue
+        executor.shutdownNow();
+        in.close();
+    }
+}
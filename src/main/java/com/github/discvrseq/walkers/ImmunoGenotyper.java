@@ -2,10 +2,24 @@ package com.github.discvrseq.walkers;
 
 import com.github.discvrseq.tools.DiscvrSeqDevProgramGroup;
 import com.github.discvrseq.tools.DiscvrSeqProgramGroup;
+import com.github.discvrseq.util.BatchArgumentCollection;
+import com.github.discvrseq.util.OrderedWorkQueue;
+import com.github.discvrseq.walkers.immunogenotyper.AlignmentRecord;
+import com.github.discvrseq.walkers.immunogenotyper.GenotypeExporter;
+import com.github.discvrseq.walkers.immunogenotyper.GenotypeFilterArgumentCollection;
+import com.github.discvrseq.walkers.immunogenotyper.ProgressMetricsWriter;
+import com.github.discvrseq.walkers.immunogenotyper.ReadNameIndex;
+import com.github.discvrseq.walkers.immunogenotyper.ReadAlignmentsTracker;
+import com.github.discvrseq.walkers.immunogenotyper.ReferenceMatchTracker;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.IOUtil;
-import org.apache.commons.lang.StringUtils;
+import htsjdk.samtools.util.SortingCollection;
 import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.ArgumentCollection;
+import org.broadinstitute.barclay.argparser.CommandLineException;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.barclay.help.DocumentedFeature;
 import org.broadinstitute.hellbender.cmdline.StandardArgumentDefinitions;
@@ -16,16 +30,16 @@ import org.broadinstitute.hellbender.engine.filters.AlignmentAgreesWithHeaderRea
 import org.broadinstitute.hellbender.engine.filters.ReadFilter;
 import org.broadinstitute.hellbender.engine.filters.ReadFilterLibrary;
 import org.broadinstitute.hellbender.exceptions.GATKException;
+import org.broadinstitute.hellbender.exceptions.UserException;
 import org.broadinstitute.hellbender.utils.io.IOUtils;
 import org.broadinstitute.hellbender.utils.read.GATKRead;
+import org.broadinstitute.hellbender.utils.read.ReadUtils;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Path;
-import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This tool will generate genotype calls for complex loci (such as many immune genes), from next-generation sequence data.
@@ -60,9 +74,11 @@ import java.util.*;
 public class ImmunoGenotyper extends ReadWalker {
     protected static final String SUMMARY = "Genotyping tool for complex loci";
 
-    public static final String GENOTYPE_EXTENSION = ".genotypes.txt";
-    public static final String MISMATCH_EXTENSION = ".mismatches.txt";
-    public static final String SUMMARY_EXTENSION = ".summary.txt";
+    public static final String GENOTYPE_EXTENSION = GenotypeExporter.GENOTYPE_EXTENSION;
+    public static final String MISMATCH_EXTENSION = GenotypeExporter.MISMATCH_EXTENSION;
+    public static final String SUMMARY_EXTENSION = GenotypeExporter.SUMMARY_EXTENSION;
+    public static final String ABUNDANCE_EXTENSION = GenotypeExporter.ABUNDANCE_EXTENSION;
+    public static final String HIT_TABLE_EXTENSION = ".hits.bin";
 
     @Argument(doc="Prefix for output files", fullName = StandardArgumentDefinitions.OUTPUT_LONG_NAME, shortName = StandardArgumentDefinitions.OUTPUT_SHORT_NAME, optional = false)
     public String outPrefix = null;
@@ -73,67 +89,102 @@ public class ImmunoGenotyper extends ReadWalker {
     @Argument(fullName = "requireValidPair", shortName = "rvp", doc = "If true, only reads with a valid pair to the same reference will be considered", optional = true)
     boolean requireValidPair = false;
 
-    @Argument(fullName = "minPctForRef", shortName = "minPctForRef", doc = "This is part of the filtering strategy for ambiguous hits.  If provided, any reference with fewer than this fraction of reads mapping to it (of the total reads mapping) will be discarded.", optional = true, maxValue = 1.0, minValue = 0.0)
-    Double minPctForRef = 0.01;
+    @Argument(fullName = "mismatchesTolerated", shortName = "mm", doc = "The maximum number of mismatches tolerated for alignment.  If a given read has multiple alignments, those with the fewest mismatches will be kept (irrespective of length).", optional = true, minValue = 0)
+    Integer mismatchesTolerated = 0;
 
-    @Argument(fullName = "minReadCountForRef", shortName = "minReadCountForRef", doc = "This is part of the filtering strategy for ambiguous hits.  If provided, any reference with fewer than the provided number of reads mapping to it will be discarded.", optional = true, minValue = 0)
-    Integer minReadCountForRef = 5;
+    @Argument(fullName = "minAlignmentLength", shortName = "minAlignmentLength", doc = "Alignments shorted than this value will be discarded.", optional = true, minValue = 0)
+    Integer minAlignmentLength = 40;
 
-    @Argument(fullName = "minPctForLineageFiltering", shortName = "minPctForLineageFiltering", doc = "This is part of the filtering strategy for ambiguous hits.  If provided, references will be grouped by lineage/allotype (based on the supplied file).  Within each group any hit sets below this threshold will be ignored.  Of the remaining, if any alleles are present across all groups, only those hits will be retained.", optional = true, maxValue = 1.0, minValue = 0.0)
-    Double minPctForLineageFiltering = 0.01;
+    @Argument(fullName = "threads", doc = "The number of threads used to process alignments.  If greater than one, the driver groups alignments by read name and hands batches of read pairs to a pool of workers, each of which builds a partial set of hits.  These are merged in input order, so the output is identical to single-threaded mode.", optional = true, minValue = 1)
+    Integer threads = 1;
 
-    @Argument(fullName = "referenceToLineageFile", shortName = "referenceToLineageFile", doc = "This is a simple tab-delimited file, no header, with two columns.  The first is the reference name, identical to that provided in the FASTA/BAM.  The second column is the lineage/allotype of this sequence.  This is used for grouping purposes and filtering.", optional = true)
-    File referenceToLineageFile;
+    @ArgumentCollection
+    BatchArgumentCollection batchArgs = new BatchArgumentCollection();
 
-    @Argument(fullName = "minPctForExport", shortName = "minPctForExport", doc = "If provided, any genotype representing fewer than this fraction of mapped reads will be discarded.", optional = true, maxValue = 1.0, minValue = 0.0)
-    Double minPctForExport = 0.00;
+    @Argument(fullName = "readOutput", shortName = "readOutput", doc = "If provided, a TSV listing each read name with hits, along with the final group (after filtering) to which it was assigned, will be written to this file.  Read names are spilled to a temp file during traversal rather than held in memory.", optional = true)
+    File readOutput = null;
 
-    @Argument(fullName = "minReadCountForExport", shortName = "minReadCountForExport", doc = "This is part of the filtering strategy for ambiguous hits.  If provided, any genotype with fewer than the provided number of reads will be discarded.", optional = true, minValue = 0)
-    Integer minReadCountForExport = 5;
+    @Argument(fullName = "splitBySample", shortName = "splitBySample", doc = "If true, reads will be grouped by the sample of their read group (or the read group ID, if it lacks a sample), and a separate set of outputs will be written per sample, named using the output prefix followed by the sample.  Reference and lineage filtering are performed independently for each sample.", optional = true)
+    boolean splitBySample = false;
 
-    @Argument(fullName = "mismatchesTolerated", shortName = "mm", doc = "The maximum number of mismatches tolerated for alignment.  If a given read has multiple alignments, those with the fewest mismatches will be kept (irrespective of length).", optional = true, minValue = 0)
-    Integer mismatchesTolerated = 0;
+    @Argument(fullName = "maxAlignmentsInRam", doc = "If the input is not queryname sorted, alignments are grouped by read name using a temporary sorted collection.  This is the maximum number of alignments held in memory before spilling to disk.", optional = true, minValue = 1)
+    Integer maxAlignmentsInRam = 1000000;
 
-    @Argument(fullName = "minAlignmentLength", shortName = "minAlignmentLength", doc = "Alignments shorted than this value will be discarded.", optional = true, minValue = 0)
-    Integer minAlignmentLength = 40;
+    @Argument(fullName = "writeHitTable", shortName = "writeHitTable", doc = "If true, the hit sets and counts collected from the alignments, prior to any filtering, will also be written to a compact binary file named using the output prefix.  ImmunoGenotyperRefilter can use this file to repeat the filtering and export steps with different options, without the original alignments.", optional = true)
+    boolean writeHitTable = false;
+
+    @Argument(fullName = "shardCount", doc = "If greater than one, reads are divided into this many shards by a hash of the read name, and only those in the shard given by shardIndex are processed.  All alignments of a read always fall in the same shard, irrespective of sort order.  This allows one BAM to be processed by several jobs, whose hit tables are then merged and filtered together using ImmunoGenotyperRefilter.  Note that this divides the work of matching and tracking alignments, not reading: every shard still reads and decodes the entire BAM, skipping reads outside the shard, so each job costs a full pass over the input.  This implies writeHitTable.", optional = true, minValue = 1)
+    Integer shardCount = 1;
+
+    @Argument(fullName = "metricsFile", doc = "If provided, progress metrics will be periodically written to this file as JSON lines, one object per line.  These include the read groups processed per second, alignments per read group, the number of hit sets held, the estimated heap used by them, and the counts of reads failing each filter.", optional = true)
+    File metricsFile = null;
 
-    private ReferenceMatchTracker refTracker;
-    private Map<String, String> nameToLineageMap;
+    @Argument(fullName = "metricsInterval", doc = "If metricsFile is provided, the minimum number of seconds between lines.", optional = true, minValue = 1)
+    Integer metricsInterval = 60;
+
+    @Argument(fullName = "shardIndex", doc = "If shardCount is greater than one, the zero-based index of the shard to process.", optional = true, minValue = 0)
+    Integer shardIndex = 0;
+
+    @ArgumentCollection
+    GenotypeFilterArgumentCollection filterArgs = new GenotypeFilterArgumentCollection();
+
+    //the number of alignments between checks of whether metrics are due
+    private static final int METRICS_CHECK_INTERVAL = 10000;
+
+    //the key used for all reads when not splitting by sample
+    private static final String ALL_READS = "";
+
+    private SAMSequenceDictionary dictionary;
+    private final Map<String, ReferenceMatchTracker> trackersBySample = new LinkedHashMap<>();
+    private GenotypeExporter exporter;
+
+    private ExecutorService executor = null;
+    private OrderedWorkQueue<Map<String, ReferenceMatchTracker>, RuntimeException> batchQueue = null;
+    private List<List<GATKRead>> activeBatch = new ArrayList<>();
+    private List<GATKRead> activeReadGroup = null;
+
+    //used to group alignments by read name when the input is not queryname sorted
+    private SortingCollection<AlignmentRecord> sortedAlignments = null;
+    private final List<String> sampleNames = new ArrayList<>();
+    private final Map<String, Integer> sampleIds = new HashMap<>();
+
+    private ProgressMetricsWriter metricsWriter = null;
+    private long alignmentsSeen = 0;
+    private long readGroupsSeen = 0;
+    private String lastReadName = null;
 
     @Override
     public void onTraversalStart() {
+        if (shardIndex >= shardCount){
+            throw new CommandLineException.BadArgumentValue("shardIndex", String.valueOf(shardIndex), "Must be less than shardCount (" + shardCount + ")");
+        }
+
+        if (shardCount > 1 && !writeHitTable){
+            logger.info("Processing shard " + shardIndex + " of " + shardCount + ", the hit table will be written so shards can be merged");
+            writeHitTable = true;
+        }
+
+        dictionary = getHeaderForReads().getSequenceDictionary();
+
         SAMFileHeader.SortOrder so = getHeaderForReads().getSortOrder();
         if (so != SAMFileHeader.SortOrder.queryname){
-            throw new IllegalArgumentException("BAM must be in queryName sort order");
+            logger.info("Input is not queryname sorted (" + so + "), alignments will be grouped by read name after traversal");
+            sortedAlignments = AlignmentRecord.newSortingCollection(maxAlignmentsInRam, IOUtils.getPath(System.getProperty("java.io.tmpdir")));
         }
 
-        refTracker = new ReferenceMatchTracker();
-
-        nameToLineageMap = new HashMap<>();
-        if (referenceToLineageFile != null){
-            try(BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(referenceToLineageFile)) {
-                String line;
-                while ((line = reader.readLine()) != null){
-                    line = StringUtils.trimToNull(line);
-                    if (line == null){
-                        continue;
-                    }
+        if (readOutput != null){
+            IOUtil.assertFileIsWritable(readOutput);
+        }
 
-                    String[] cells = line.split("\t");
-                    if (cells.length < 2){
-                        throw new GATKException("Reference to Lineage/Allotype file must have two values per line");
-                    }
+        if (threads > 1){
+            executor = Executors.newFixedThreadPool(threads);
+            batchQueue = new OrderedWorkQueue<>(executor, threads, this::mergeBatch);
+        }
 
-                    if (nameToLineageMap.containsKey(cells[0])){
-                        throw new GATKException("Each reference can only be provided once in the Lineage/Allotype file: " + cells[0]);
-                    }
+        exporter = new GenotypeExporter(filterArgs);
 
-                    nameToLineageMap.put(cells[0], cells[1]);
-                }
-            }
-            catch (IOException e){
-                throw new GATKException(e.getMessage(), e);
-            }
+        if (metricsFile != null){
+            metricsWriter = new ProgressMetricsWriter(metricsFile, metricsInterval);
         }
     }
 
@@ -180,6 +231,7 @@ public class ImmunoGenotyper extends ReadWalker {
     }
 
     private ReadAlignmentsTracker activeRead = null;
+    private String activeSample = null;
 
     @Override
     public void apply(GATKRead read, ReferenceContext referenceContext, FeatureContext featureContext) {
@@ -187,496 +239,293 @@ public class ImmunoGenotyper extends ReadWalker {
             return;
         }
 
-        if (activeRead == null){
-            activeRead = new ReadAlignmentsTracker(read.getName());
+        if (shardCount > 1 && !isInShard(read.getName())){
+            return;
         }
-        else if (!activeRead.activeReadName.equals(read.getName())) {
-            refTracker.addRead(activeRead);
 
-            activeRead = new ReadAlignmentsTracker(read.getName());
+        if (metricsWriter != null){
+            updateMetrics(read);
         }
 
-        if (read.getMappingQuality() < minMappingQuality){
-            activeRead.addLowMapqAlignment();
+        if (sortedAlignments != null){
+            sortedAlignments.add(toAlignmentRecord(read));
             return;
         }
 
-        //determine if has mismatches
-        if (!read.hasAttribute("NM")) {
-            throw new IllegalArgumentException("Read lacks NM tag: " + read.getName());
+        //alignments are grouped by read name and sample, as in replaySortedAlignments()
+        String sample = getSample(read);
+        if (executor != null){
+            addToBatch(read, sample);
+            return;
         }
 
-        activeRead.addAlignment(read, read.getAttributeAsInteger("NM"));
-    }
+        if (activeRead == null || !activeRead.getReadName().equals(read.getName()) || !activeSample.equals(sample)){
+            if (activeRead != null){
+                getTracker(trackersBySample, activeSample, false).addRead(activeRead);
+            }
 
-    @Override
-    public Object onTraversalSuccess() {
-        //finalize the last group
-        if (activeRead != null){
-            refTracker.addRead(activeRead);
-        }
-
-        NumberFormat numberFormat = NumberFormat.getNumberInstance();
-        numberFormat.setMinimumFractionDigits(3);
-
-        //perform filtering of hits
-        List<String> messages = new ArrayList<>();
-        double total = (double)refTracker.readPairsNoHits + refTracker.readPairsWithHits;
-        messages.add("Read pairs with hits: " + refTracker.readPairsWithHits + " (" + numberFormat.format(refTracker.readPairsWithHits / total) + ")");
-        messages.add("Read pairs without hits: " + refTracker.readPairsNoHits + " (" + numberFormat.format(refTracker.readPairsNoHits / total) + ")");
-        messages.add("Failed due to MAPQ: " + refTracker.totalReadsFailedForMapq + " (" + numberFormat.format(refTracker.totalReadsFailedForMapq / total) + ")");
-        messages.add("Failed due to length: " + refTracker.totalReadsFailedForLength + " (" + numberFormat.format(refTracker.totalReadsFailedForLength / total) + ")");
-        messages.add("Failed due to no valid pair: " + refTracker.totalReadsFailedForValidPair + " (" + numberFormat.format(refTracker.totalReadsFailedForValidPair / total) + ")");
-        messages.add("Failed due to mismatches: " + refTracker.totalAlignmentsFailedForMismatch + " (" + numberFormat.format(refTracker.totalAlignmentsFailedForMismatch / total) + ")");
-
-        filterByReference(refTracker, messages);
-        filterByLineage(refTracker, messages);
-
-        //write out tables
-        Path outputFile = IOUtils.getPath(outPrefix + GENOTYPE_EXTENSION);
-        IOUtil.assertFilesAreWritable(Arrays.asList(outputFile.toFile()));
-        try (PrintWriter outWriter = new PrintWriter(IOUtil.openFileForBufferedWriting(outputFile.toFile()))){
-            outWriter.println(StringUtils.join(Arrays.asList("RefNames", "Lineage/Allotypes", "TotalReads", "PercentOfTotal", "PercentOfTotalIncludingUnmapped"), "\t"));
-
-            messages.add("Exporting final groups:");
-
-            int groupsSkipped = 0;
-            for (String key : refTracker.hitMap.keySet()) {
-                HitSet hs = refTracker.hitMap.get(key);
-                Double pct = hs.readNames.size() / (double) refTracker.readPairsWithHits;
-                Double pct2 = hs.readNames.size() / (double)(refTracker.readPairsWithHits + refTracker.readPairsNoHits);
-
-                if (hs.readNames.size() < minReadCountForExport){
-                    messages.add("Discarded due to count: " + key + " / " + hs.readNames.size() + " / " + numberFormat.format(pct));
-                    groupsSkipped++;
-                    continue;
-                }
+            activeRead = createTracker(read.getName());
+            activeSample = sample;
+        }
 
-                if (pct < minPctForExport){
-                    messages.add("Discarded due to percent: " + key + " / " + hs.readNames.size() + " / " + numberFormat.format(pct));
-                    groupsSkipped++;
-                    continue;
-                }
+        addAlignment(activeRead, read);
+    }
 
-                outWriter.println(StringUtils.join(Arrays.asList(
-                        StringUtils.join(hs.refNames, ","),
-                        StringUtils.join(hs.getLineages(nameToLineageMap), ","),
-                        String.valueOf(hs.readNames.size()),
-                        numberFormat.format(pct),
-                        numberFormat.format(pct2)
-                ), "\t"));
-            }
+    private void updateMetrics(GATKRead read){
+        alignmentsSeen++;
+
+        //if the input is not queryname sorted, read groups are counted as the alignments are replayed
+        if (sortedAlignments == null && !read.getName().equals(lastReadName)){
+            readGroupsSeen++;
+            lastReadName = read.getName();
+        }
 
-            messages.add("Groups skipped due to low read count or percent: " + groupsSkipped);
+        if (alignmentsSeen % METRICS_CHECK_INTERVAL == 0 && metricsWriter.isDue()){
+            metricsWriter.write("traversal", alignmentsSeen, readGroupsSeen, trackersBySample.values());
         }
+    }
 
-        Path summaryFile = IOUtils.getPath(outPrefix + SUMMARY_EXTENSION);
-        IOUtil.assertFilesAreWritable(Arrays.asList(summaryFile.toFile()));
-        try (PrintWriter outWriter = new PrintWriter(IOUtil.openFileForBufferedWriting(summaryFile.toFile()))){
-            messages.forEach(message -> outWriter.println(message));
+    //String.hashCode() is specified by the JLS, so the assignment of reads to shards is stable across JVMs and nodes.
+    //since the shards interleave, every shard must still read the whole BAM
+    private boolean isInShard(String readName){
+        return Math.floorMod(readName.hashCode(), shardCount) == shardIndex;
+    }
+
+    private String getSample(GATKRead read){
+        if (!splitBySample){
+            return ALL_READS;
         }
 
-        Path mismatchFile = IOUtils.getPath(outPrefix + MISMATCH_EXTENSION);
-        IOUtil.assertFilesAreWritable(Arrays.asList(mismatchFile.toFile()));
-        try (PrintWriter outWriter = new PrintWriter(IOUtil.openFileForBufferedWriting(mismatchFile.toFile()))){
-            outWriter.println(StringUtils.join(Arrays.asList("RefName", "TotalReads", "ReasonForFailure"), "\t"));
-            for (String refName : refTracker.mismatchMap.keySet()){
-                AlignmentMismatch am = refTracker.mismatchMap.get(refName);
-                outWriter.println(StringUtils.join(Arrays.asList(
-                    refName,
-                    String.valueOf(am.totalReads),
-                    StringUtils.join(am.reasonsForFailure, ",")
-                ), "\t"));
-            }
+        SAMReadGroupRecord rg = ReadUtils.getSAMReadGroupRecord(read, getHeaderForReads());
+        if (rg == null){
+            throw new UserException.BadInput("Read lacks a read group, cannot split by sample: " + read.getName());
         }
 
-        return super.onTraversalSuccess();
+        return rg.getSample() == null ? rg.getReadGroupId() : rg.getSample();
     }
 
-    private class AlignmentMismatch {
-        String refName;
-        int totalReads = 0;
-        Set<String> reasonsForFailure = new HashSet<>();
+    private ReferenceMatchTracker getTracker(Map<String, ReferenceMatchTracker> trackers, String sample, boolean isPartial){
+        ReferenceMatchTracker tracker = trackers.get(sample);
+        if (tracker == null){
+            tracker = new ReferenceMatchTracker(dictionary, requireValidPair);
+            tracker.setShard(shardIndex, shardCount);
+            if (readOutput != null){
+                tracker.setReadNameIndex(isPartial ? ReadNameIndex.createBuffered() : ReadNameIndex.createSpilling());
+            }
 
-        AlignmentMismatch(String refName){
-            this.refName = refName;
+            trackers.put(sample, tracker);
         }
 
-        private void addRead(String reason){
-            totalReads++;
-            reasonsForFailure.add(reason);
-        }
+        return tracker;
     }
 
-    private class ReferenceMatchTracker {
-        private Map<String, HitSet> hitMap = new HashMap<>();
-        private Map<String, AlignmentMismatch> mismatchMap = new HashMap<>();
-        private int readPairsWithHits = 0;
-        private int readPairsNoHits = 0;
-        private int totalReadsFailedForMapq = 0;
-        private int totalReadsFailedForValidPair = 0;
-        private int totalReadsFailedForLength = 0;
-        private int totalAlignmentsFailedForMismatch = 0;
-
-        public ReferenceMatchTracker(){
+    private ReadAlignmentsTracker createTracker(String readName){
+        return new ReadAlignmentsTracker(readName, minAlignmentLength, mismatchesTolerated);
+    }
 
+    private void addAlignment(ReadAlignmentsTracker tracker, GATKRead read){
+        if (read.getMappingQuality() < minMappingQuality){
+            tracker.addLowMapqAlignment();
+            return;
         }
 
-        public void addRead(ReadAlignmentsTracker tracker){
-            ReadHit hit = tracker.getHits(requireValidPair);
-            if (!hit.hits.isEmpty()){
-                readPairsWithHits++;
+        //determine if has mismatches
+        if (!read.hasAttribute("NM")) {
+            throw new IllegalArgumentException("Read lacks NM tag: " + read.getName());
+        }
 
-                String key = HitSet.getKey(hit.hits);
-                if (!hitMap.containsKey(key)){
-                    hitMap.put(key, new HitSet(hit.hits));
-                }
+        tracker.addAlignment(read, dictionary.getSequenceIndex(read.getContig()), read.getAttributeAsInteger("NM"));
+    }
 
-                hitMap.get(key).addRead(tracker, hit.hasForward, hit.hasReverse);
-            }
-            else {
-                readPairsNoHits++;
+    private AlignmentRecord toAlignmentRecord(GATKRead read){
+        String sample = getSample(read);
+        Integer sampleId = sampleIds.get(sample);
+        if (sampleId == null){
+            sampleId = sampleNames.size();
+            sampleNames.add(sample);
+            sampleIds.put(sample, sampleId);
+        }
 
-                if (tracker.lowMapqAlignments > 0){
-                    totalReadsFailedForMapq++;
-                }
+        if (read.getMappingQuality() < minMappingQuality){
+            return AlignmentRecord.createLowMapq(read.getName(), sampleId);
+        }
 
-                if (tracker.shortAlignments.size() > 0){
-                    totalReadsFailedForLength++;
-                }
+        if (!read.hasAttribute("NM")) {
+            throw new IllegalArgumentException("Read lacks NM tag: " + read.getName());
+        }
 
-                if (tracker.mismatchAlignments.size() > 0){
-                    totalAlignmentsFailedForMismatch++;
-                    for (String refName : tracker.mismatchAlignments){
-                        if (!mismatchMap.containsKey(refName)){
-                            mismatchMap.put(refName, new AlignmentMismatch(refName));
-                        }
+        return AlignmentRecord.create(read.getName(), sampleId, dictionary.getSequenceIndex(read.getContig()), read.getAttributeAsInteger("NM"), read.getLength(), !read.isPaired() || read.isFirstOfPair(), read.isPaired() && read.isSecondOfPair());
+    }
 
-                        mismatchMap.get(refName).addRead("Mismatches");
+    /**
+     * Replays the collected alignments in read name order, which is equivalent to traversing a queryname sorted input.
+     */
+    private void replaySortedAlignments(){
+        sortedAlignments.doneAdding();
+        try (CloseableIterator<AlignmentRecord> it = sortedAlignments.iterator()){
+            while (it.hasNext()){
+                AlignmentRecord rec = it.next();
+                String sample = sampleNames.get(rec.getSampleId());
+                if (activeRead == null || !activeRead.getReadName().equals(rec.getReadName()) || !activeSample.equals(sample)){
+                    if (activeRead != null){
+                        getTracker(trackersBySample, activeSample, false).addRead(activeRead);
                     }
-                }
 
-                if (requireValidPair && (!tracker.forwardPerfectHits.isEmpty() || !tracker.reversePerfectHits.isEmpty())){
-                    totalReadsFailedForValidPair++;
+                    activeRead = createTracker(rec.getReadName());
+                    activeSample = sample;
 
-                    ReadHit hitNoValidPair = tracker.getHits(false);
-                    if (!hitNoValidPair.hits.isEmpty()){
-                        for (String refName : hitNoValidPair.hits){
-                            if (!mismatchMap.containsKey(refName)){
-                                mismatchMap.put(refName, new AlignmentMismatch(refName));
-                            }
-
-                            mismatchMap.get(refName).addRead("NoValidPair");
+                    if (metricsWriter != null){
+                        readGroupsSeen++;
+                        if (readGroupsSeen % METRICS_CHECK_INTERVAL == 0 && metricsWriter.isDue()){
+                            metricsWriter.write("grouping", alignmentsSeen, readGroupsSeen, trackersBySample.values());
                         }
                     }
                 }
+
+                rec.addTo(activeRead);
             }
         }
-    }
 
-    private class ReadHit {
-        Set<String> hits = new HashSet<>();
-        boolean hasForward;
-        boolean hasReverse;
+        sortedAlignments.cleanup();
+        sortedAlignments = null;
     }
 
-    private class ReadAlignmentsTracker {
-        private String activeReadName;
-
-        private Map<Integer, Set<String>> forwardPerfectHits = new HashMap<>();
-        private Map<Integer, Set<String>> reversePerfectHits = new HashMap<>();
-        private int lowMapqAlignments = 0;
-        private Set<String> mismatchAlignments = new HashSet<>();
-        private Set<String> shortAlignments = new HashSet<>();
-
-        public ReadAlignmentsTracker(String activeReadName){
-            this.activeReadName = activeReadName;
-        }
-
-        public void addAlignment(GATKRead record, int nm) {
-            if (record.getLength() < minAlignmentLength){
-                shortAlignments.add(record.getContig());
-            }
-            else if (nm > mismatchesTolerated){
-                mismatchAlignments.add(record.getContig());
-            }
-            else {
-                if (!forwardPerfectHits.containsKey(nm)){
-                    forwardPerfectHits.put(nm, new HashSet<>());
-                    reversePerfectHits.put(nm, new HashSet<>());
-                }
+    private void addToBatch(GATKRead read, String sample){
+        if (activeReadGroup != null && (!activeReadGroup.get(0).getName().equals(read.getName()) || !activeSample.equals(sample))){
+            activeBatch.add(activeReadGroup);
+            activeReadGroup = null;
 
-                if (!record.isPaired() || record.isFirstOfPair()){
-                    forwardPerfectHits.get(nm).add(record.getContig());
-                }
-                else if (record.isSecondOfPair()) {
-                    reversePerfectHits.get(nm).add(record.getContig());
-                }
+            if (activeBatch.size() >= batchArgs.readPairsPerBatch){
+                submitBatch();
             }
         }
 
-        public void addLowMapqAlignment() {
-            lowMapqAlignments++;
+        if (activeReadGroup == null){
+            activeReadGroup = new ArrayList<>();
+            activeSample = sample;
         }
 
-        public ReadHit getHits(boolean requireValidPair)
-        {
-            if (forwardPerfectHits.isEmpty()){
-                return new ReadHit();
-            }
+        activeReadGroup.add(read);
+    }
 
-            Integer lowestForward = new TreeSet<>(forwardPerfectHits.keySet()).iterator().next();
-            Integer lowestReverse = new TreeSet<>(reversePerfectHits.keySet()).iterator().next();
-            Set<String> hits = new HashSet<>();
-            hits.addAll(forwardPerfectHits.get(lowestForward));
-            if (requireValidPair){
-                hits.retainAll(reversePerfectHits.get(lowestReverse));
-                ReadHit ret = new ReadHit();
-                ret.hits.addAll(hits);
-                ret.hasForward = true;
-                ret.hasReverse = true;
-                return ret;
+    private void submitBatch(){
+        final List<List<GATKRead>> batch = activeBatch;
+        activeBatch = new ArrayList<>();
+        batchQueue.submit(() -> processBatch(batch));
+    }
 
+    private Map<String, ReferenceMatchTracker> processBatch(List<List<GATKRead>> batch){
+        Map<String, ReferenceMatchTracker> partials = new LinkedHashMap<>();
+        for (List<GATKRead> reads : batch){
+            ReadAlignmentsTracker tracker = createTracker(reads.get(0).getName());
+            for (GATKRead read : reads){
+                addAlignment(tracker, read);
             }
-            else {
-                hits.addAll(reversePerfectHits.get(lowestReverse));
-                ReadHit ret = new ReadHit();
-                ret.hits.addAll(hits);
-                ret.hasForward = !forwardPerfectHits.get(lowestForward).isEmpty();
-                ret.hasReverse = !reversePerfectHits.get(lowestReverse).isEmpty();
-                return ret;
-            }
-        }
-    }
 
-    private static class HitSet {
-        private Set<String> readNames = new HashSet<>();
-        private Set<String> refNames = new TreeSet<>();
+            getTracker(partials, getSample(reads.get(0)), true).addRead(tracker);
+        }
 
-        private int forward = 0;
-        private int reverse = 0;
-        private int valid_pair = 0;
+        return partials;
+    }
 
-        public HitSet(Collection<String> refNames) {
-            this.refNames.addAll(refNames);
+    private void mergeBatch(Map<String, ReferenceMatchTracker> partials){
+        for (Map.Entry<String, ReferenceMatchTracker> e : partials.entrySet()){
+            getTracker(trackersBySample, e.getKey(), false).merge(e.getValue());
         }
+    }
 
-        public void append(HitSet other) {
-            forward += other.forward;
-            reverse += other.reverse;
-            valid_pair += other.valid_pair;
-            readNames.addAll(other.readNames);
+    @Override
+    public Object onTraversalSuccess() {
+        if (sortedAlignments != null){
+            replaySortedAlignments();
         }
 
-        public String getKey() {
-            return getKey(refNames);
+        //finalize the last group
+        if (activeRead != null){
+            getTracker(trackersBySample, activeSample, false).addRead(activeRead);
         }
 
-        public void addRead(ReadAlignmentsTracker tracker, boolean isForward, boolean isReverse){
-            this.readNames.add(tracker.activeReadName);
-
-            if (isForward){
-                forward++;
+        if (executor != null){
+            if (activeReadGroup != null){
+                activeBatch.add(activeReadGroup);
+                activeReadGroup = null;
             }
 
-            if (isReverse){
-                reverse++;
+            if (!activeBatch.isEmpty()){
+                submitBatch();
             }
-        }
-
-        public static String getKey(Collection<String> refNames) {
-            List<String> ret = new ArrayList<>(refNames);
-            Collections.sort(ret);
 
-            return StringUtils.join(ret, "||");
+            batchQueue.finish();
         }
 
-        public Set<String> getLineages(Map<String, String> referenceToLineageMap){
-            TreeSet<String> ret = new TreeSet<>();
-            for (String refName : refNames){
-                ret.add(referenceToLineageMap.containsKey(refName) ? referenceToLineageMap.get(refName) : refName);
-            }
+        if (!splitBySample){
+            //ensure outputs are written, even if no reads were found
+            getTracker(trackersBySample, ALL_READS, false);
+        }
 
-            return ret;
+        if (metricsWriter != null){
+            metricsWriter.write("complete", alignmentsSeen, readGroupsSeen, trackersBySample.values());
         }
-    }
 
-    private void filterByReference(ReferenceMatchTracker refTracker, List<String> messages){
-        messages.add("Filtering by reference:");
-        int readsHelpedByAlleleFilters = 0;
-
-        //build total by ref
-        Map<String, Integer> totalByReference = new HashMap<>();
-        int totalReads = 0;
-        for (HitSet hs : refTracker.hitMap.values()) {
-            for (String refName : hs.refNames) {
-                int total = totalByReference.containsKey(refName) ? totalByReference.get(refName) : 0;
-                total += hs.readNames.size();
-                totalByReference.put(refName, total);
+        //each sample is filtered and exported independently, so these can run in parallel
+        if (executor != null && trackersBySample.size() > 1){
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<String, ReferenceMatchTracker> e : trackersBySample.entrySet()){
+                //the executor's threads are in use by the samples, so abundance estimation and lineage filtering are not parallelized
+                futures.add(executor.submit(() -> filterAndExport(e.getKey(), e.getValue(), null)));
             }
 
-            totalReads += hs.readNames.size();
+            futures.forEach(OrderedWorkQueue::getResult);
         }
-
-        //make blacklist
-        Set<String> disallowedReferences = new HashSet<>();
-        for (String refName : totalByReference.keySet()){
-            int totalForRef = totalByReference.get(refName);
-            double pct = ((double) totalByReference.get(refName) / totalReads);
-
-            if (minReadCountForRef != null && totalForRef < minReadCountForRef) {
-                messages.add("Discarded due to read count: " + refName + " / " + totalForRef + " / " + pct);
-                disallowedReferences.add(refName);
-            }
-            else if (minPctForRef != null && pct < minPctForRef) {
-                messages.add("Discarded due to percent: " + refName + " / " + totalForRef + " / " + pct);
-                disallowedReferences.add(refName);
-            }
+        else {
+            trackersBySample.forEach((sample, refTracker) -> filterAndExport(sample, refTracker, executor));
         }
 
-        //now actually filter:
-        //then actually use these for filtering
-        Map<String, HitSet> newHitMap = new HashMap<>();
-        for (HitSet hs : refTracker.hitMap.values()) {
-            List<String> refNames = new ArrayList<>(hs.refNames);
-            refNames.removeAll(disallowedReferences);
-            if (refNames.isEmpty()) {
-                //refTracker.unaligned.addAll(hs.readNames);
-                //messages.add("Set condensed: " + StringUtils.join(hs.refNames, ",") + " -> None");
-            }
-            else {
-                if (refNames.size() != hs.refNames.size()) {
-                    readsHelpedByAlleleFilters++;
-                }
-
-                //merge sets
-                String newKey = HitSet.getKey(refNames);
-                HitSet hs2 = newHitMap.containsKey(newKey) ? newHitMap.get(newKey) : new HitSet(refNames);
-                hs2.append(hs);
-                newHitMap.put(newKey, hs2);
-
-            }
-        }
+        return super.onTraversalSuccess();
+    }
 
-        messages.add("Groups before/after filtering by reference: " + refTracker.hitMap.size() + "/" + newHitMap.size());
+    private String getOutputPrefix(String sample){
+        return ALL_READS.equals(sample) ? outPrefix : outPrefix + "." + toSafeFileName(sample);
+    }
 
-        refTracker.hitMap = newHitMap;
+    private static String toSafeFileName(String sample){
+        return sample.replaceAll("[^A-Za-z0-9_.-]", "_");
     }
 
-    private void filterByLineage(ReferenceMatchTracker refTracker, List<String> messages){
-        if (nameToLineageMap.isEmpty()){
-            logger.info("no reference to lineage/allotype file provided, cannot perform filtering");
-            return;
+    private void filterAndExport(String sample, ReferenceMatchTracker refTracker, ExecutorService filterExecutor){
+        String prefix = getOutputPrefix(sample);
+        if (writeHitTable){
+            refTracker.writeHitTable(new File(prefix + HIT_TABLE_EXTENSION));
         }
 
-        Map<String, HitSet> newHitSetMap = new HashMap<>();
-
-        //build a map of distinct sets by lineage
-        Map<String, List<HitSet>> resultByLineage = new HashMap<>();
-        Map<String, Integer> totalByLineage = new HashMap<>();
-        for (String key : refTracker.hitMap.keySet()) {
-            HitSet hs = refTracker.hitMap.get(key);
-            Set<String> distinctLineages = new HashSet<>();
-            for (String refName: hs.refNames) {
-                if (!nameToLineageMap.containsKey(refName)) {
-                    //if we have missing lineages, abort and keep data as-is
-                    distinctLineages.clear();
-                    break;
-                }
-
-                distinctLineages.add(nameToLineageMap.get(refName));
-            }
-
-            if (distinctLineages.size() == 1) {
-                String lineage = distinctLineages.iterator().next();
-                if (!resultByLineage.containsKey(lineage)) {
-                    resultByLineage.put(lineage, new ArrayList<>());
-                    totalByLineage.put(lineage, 0);
-                }
-
-                resultByLineage.get(lineage).add(hs);
-                totalByLineage.put(lineage, totalByLineage.get(lineage) + hs.readNames.size());
-            }
-            else {
-                newHitSetMap.put(key, hs);
-            }
+        File readFile = null;
+        if (readOutput != null){
+            readFile = ALL_READS.equals(sample) ? readOutput : new File(readOutput.getParentFile(), toSafeFileName(sample) + "." + readOutput.getName());
         }
 
-        //now filter by lineage
-        logger.info("total lineages being inspected: " + resultByLineage.size());
-        for (String lineage : resultByLineage.keySet()) {
-            List<HitSet> sets = resultByLineage.get(lineage);
-            if (sets.size() == 1) {
-                newHitSetMap.put(sets.get(0).getKey(), sets.get(0));
-                continue;
-            }
-
-            if (!totalByLineage.containsKey(lineage)) {
-                logger.error("unable to find lineage, cannot filter: [" + lineage + "]");
-                for (HitSet hs : sets) {
-                    newHitSetMap.put(hs.getKey(), hs);
-                }
-                continue;
-            }
-
-            Set<String> sharedRefNames = null;
-            int setsSkipped = 0;
-            for (HitSet hs : sets) {
-                double pctOfLineage = (double)hs.readNames.size() / (double)totalByLineage.get(lineage);
-                if (pctOfLineage < minPctForLineageFiltering) {
-                    setsSkipped++;
-                    continue;
-                }
-
-                if (sharedRefNames == null) {
-                    sharedRefNames = new HashSet<>(hs.refNames);
-                }
-                else {
-                    sharedRefNames.retainAll(hs.refNames);
-                    if (sharedRefNames.isEmpty()){
-                        break;
-                    }
-                }
-            }
+        exporter.filterAndExport(prefix, refTracker, readFile, filterExecutor);
+    }
 
-            logger.debug("total sets skipped due to pct: " + setsSkipped);
-            if (sharedRefNames == null || sharedRefNames.isEmpty()) {
-                //if empty, there are no alleles common to all, so keep original data
-                for (HitSet hs : sets) {
-                    newHitSetMap.put(hs.getKey(), hs);
-                }
-            }
-            else {
-                //merge and make new
-                HitSet merged = new HitSet(sharedRefNames);
-                for (HitSet hs : sets) {
-                    //if below the threshold, leave as is
-                    double pctOfLineage = (double)hs.readNames.size() / (double)totalByLineage.get(lineage);
-                    if (pctOfLineage < minPctForLineageFiltering) {
-                        if (newHitSetMap.containsKey(hs.getKey())) {
-                            newHitSetMap.get(hs.getKey()).append(hs);
-                        }
-                        else {
-                            newHitSetMap.put(hs.getKey(), hs);
-                        }
+    @Override
+    public void closeTool() {
+        if (executor != null){
+            executor.shutdownNow();
+        }
 
-                        continue;
-                    }
+        if (sortedAlignments != null){
+            sortedAlignments.cleanup();
+        }
 
-                    merged.append(hs);
-                }
+        if (metricsWriter != null){
+            metricsWriter.close();
+        }
 
-                if (newHitSetMap.containsKey(merged.getKey())) {
-                    newHitSetMap.get(merged.getKey()).append(merged);
-                }
-                else {
-                    newHitSetMap.put(merged.getKey(), merged);
-                }
+        for (ReferenceMatchTracker tracker : trackersBySample.values()){
+            if (tracker.getReadNameIndex() != null){
+                tracker.getReadNameIndex().close();
             }
         }
 
-        messages.add("Groups before/after filtering by lineage/allotype: " + refTracker.hitMap.size() + "/" + newHitSetMap.size());
-
-        refTracker.hitMap = newHitSetMap;
+        super.closeTool();
     }
 }
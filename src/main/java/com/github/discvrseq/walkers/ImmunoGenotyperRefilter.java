@@ -0,0 +1,114 @@
+package com.github.discvrseq.walkers;
+
+import com.github.discvrseq.tools.DiscvrSeqDevProgramGroup;
+import com.github.discvrseq.walkers.immunogenotyper.GenotypeExporter;
+import com.github.discvrseq.walkers.immunogenotyper.GenotypeFilterArgumentCollection;
+import com.github.discvrseq.walkers.immunogenotyper.ReferenceMatchTracker;
+import htsjdk.samtools.util.IOUtil;
+import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.ArgumentCollection;
+import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
+import org.broadinstitute.barclay.help.DocumentedFeature;
+import org.broadinstitute.hellbender.cmdline.StandardArgumentDefinitions;
+import org.broadinstitute.hellbender.engine.GATKTool;
+import org.broadinstitute.hellbender.exceptions.UserException;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * This tool repeats the filtering and export steps of ImmunoGenotyper, using the hit table written by ImmunoGenotyper with --writeHitTable, rather than the original alignments.
+ * This allows the filtering options (such as minPctForRef or the lineage file) to be adjusted without re-reading the BAM.  It accepts the same filtering arguments as ImmunoGenotyper,
+ * and writes the same genotype, summary and mismatch tables.  Since read names are not stored in the hit table, per-read output is not supported.
+ *
+ * If more than one hit table is provided, these are merged before filtering.  All must have been created using the same reference.
+ * This is also used to combine the output of ImmunoGenotyper jobs run using --shardCount and --shardIndex, each processing a subset of the reads of one BAM.
+ * In this case filtering is only performed once, over the merged hits, so the output matches that of a single unsharded run.  Every shard must be provided exactly once.
+ * Hit tables written without --shardCount are merged without these checks.
+ *
+ * <h3>Usage example:</h3>
+ * <pre>
+ *  java -jar DISCVRseq.jar ImmunoGenotyperRefilter \
+ *     -ht output.hits.bin \
+ *     -minReadCountForRef 10 \
+ *     -O refiltered
+ * </pre>
+ *
+ * <h3>Merging shards:</h3>
+ * <pre>
+ *  java -jar DISCVRseq.jar ImmunoGenotyper -R reference.fasta -I myBam.bam --shardCount 2 --shardIndex 0 -O shard0
+ *  java -jar DISCVRseq.jar ImmunoGenotyper -R reference.fasta -I myBam.bam --shardCount 2 --shardIndex 1 -O shard1
+ *  java -jar DISCVRseq.jar ImmunoGenotyperRefilter \
+ *     -ht shard0.hits.bin \
+ *     -ht shard1.hits.bin \
+ *     -O merged
+ * </pre>
+ */
+@DocumentedFeature
+@CommandLineProgramProperties(
+        oneLineSummary = "Re-filters the hits saved by ImmunoGenotyper, without the original alignments.",
+        summary = "Repeats the filtering and export steps of ImmunoGenotyper using a saved hit table.",
+        programGroup = DiscvrSeqDevProgramGroup.class)
+public class ImmunoGenotyperRefilter extends GATKTool {
+    @Argument(fullName = "hitTable", shortName = "ht", doc = "One or more hit tables, written by ImmunoGenotyper using --writeHitTable.  If more than one is provided, these are merged.", optional = false)
+    List<File> hitTables;
+
+    @Argument(doc="Prefix for output files", fullName = StandardArgumentDefinitions.OUTPUT_LONG_NAME, shortName = StandardArgumentDefinitions.OUTPUT_SHORT_NAME, optional = false)
+    public String outPrefix = null;
+
+    @ArgumentCollection
+    GenotypeFilterArgumentCollection filterArgs = new GenotypeFilterArgumentCollection();
+
+    @Override
+    public void onTraversalStart() {
+        super.onTraversalStart();
+
+        for (File hitTable : hitTables){
+            IOUtil.assertFileIsReadable(hitTable);
+        }
+    }
+
+    @Override
+    public void traverse() {
+        ReferenceMatchTracker refTracker = null;
+        for (File hitTable : hitTables){
+            ReferenceMatchTracker tracker = ReferenceMatchTracker.readHitTable(hitTable);
+            if (refTracker == null){
+                refTracker = tracker;
+                continue;
+            }
+
+            if (!refTracker.getSequenceDictionary().isSameDictionary(tracker.getSequenceDictionary())){
+                throw new UserException.BadInput("All hit tables must use the same reference: " + hitTable.getPath());
+            }
+
+            if (refTracker.isRequireValidPair() != tracker.isRequireValidPair()){
+                throw new UserException.BadInput("All hit tables must use the same value for requireValidPair: " + hitTable.getPath());
+            }
+
+            if (refTracker.getShardCount() != tracker.getShardCount()){
+                throw new UserException.BadInput("All hit tables must use the same shardCount: " + hitTable.getPath());
+            }
+
+            //unsharded tables, such as those of separate BAMs, are simply merged
+            if (refTracker.getShardCount() > 1 && refTracker.getShards().intersects(tracker.getShards())){
+                throw new UserException.BadInput("Hit table contains a shard that has already been provided: " + hitTable.getPath());
+            }
+
+            refTracker.merge(tracker);
+        }
+
+        if (refTracker.getShardCount() > 1){
+            BitSet missing = new BitSet(refTracker.getShardCount());
+            missing.set(0, refTracker.getShardCount());
+            missing.andNot(refTracker.getShards());
+            if (!missing.isEmpty()){
+                throw new UserException.BadInput("Hit tables were not provided for all shards, missing: " + missing.stream().mapToObj(String::valueOf).collect(Collectors.joining(", ")));
+            }
+        }
+
+        new GenotypeExporter(filterArgs).filterAndExport(outPrefix, refTracker, null, null);
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.discvrseq.walkers;
+
+import com.github.discvrseq.tools.DiscvrSeqProgramGroup;
+import com.github.discvrseq.walkers.printreadscontaining.FastqIndex;
+import htsjdk.samtools.util.IOUtil;
+import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
+import org.broadinstitute.barclay.help.DocumentedFeature;
+import org.broadinstitute.hellbender.engine.GATKTool;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * This tool creates an index of one or more FASTQs, recording the offset of every Nth record, which allows PrintReadsContaining to process a FASTQ or pair of FASTQs as several shards
+ * using --shardCount and --shardIndex.  The FASTQs must be BGZF compressed (as written by bgzip) or uncompressed.  Each index is written alongside its FASTQ, with the extension .fqi.
+ * Both FASTQs of a pair should be indexed using the same value for --recordsPerEntry.
+ *
+ * <h3>Usage example:</h3>
+ * <pre>
+ *  java -jar DISCVRseq.jar IndexFastq \
+ *     --fastq fastq_R1.fastq.gz \
+ *     --fastq fastq_R2.fastq.gz
+ * </pre>
+ */
+@DocumentedFeature
+@CommandLineProgramProperties(
+        summary = "This tool creates an index of the record offsets of BGZF or uncompressed FASTQs, so these can be processed as shards by PrintReadsContaining.",
+        oneLineSummary = "Creates an index of FASTQ record offsets",
+        programGroup = DiscvrSeqProgramGroup.class
+)
+public class IndexFastq extends GATKTool {
+    @Argument(fullName = "fastq", doc = "One or more FASTQs to index, which must be BGZF compressed or uncompressed.")
+    public List<File> fastqs;
+
+    @Argument(fullName = "recordsPerEntry", doc = "The number of records between indexed offsets.  Shards begin at an indexed record, so this is the granularity with which FASTQs are divided.", optional = true, minValue = 1)
+    private int recordsPerEntry = 100000;
+
+    @Argument(fullName = "threads", doc = "The number of threads used to inflate each BGZF input, in addition to one thread reading ahead in the file.", optional = true, minValue = 1)
+    private int threads = 1;
+
+    @Override
+    public void onTraversalStart() {
+        super.onTraversalStart();
+
+        for (File fastq : fastqs) {
+            IOUtil.assertFileIsReadable(fastq);
+            IOUtil.assertFileIsWritable(FastqIndex.getIndexFile(fastq));
+        }
+    }
+
+    @Override
+    public void traverse() {
+        for (File fastq : fastqs) {
+            FastqIndex index = FastqIndex.build(fastq, recordsPerEntry, threads);
+            index.write(FastqIndex.getIndexFile(fastq));
+
+            logger.info("indexed " + fastq.getName() + ": " + index.getRecordCount() + " records");
+        }
+    }
+}
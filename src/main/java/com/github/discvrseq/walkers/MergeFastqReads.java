@@ -1,24 +1,40 @@
 package com.github.discvrseq.walkers;
 
 import com.github.discvrseq.tools.DiscvrSeqProgramGroup;
+import com.github.discvrseq.util.BatchArgumentCollection;
+import com.github.discvrseq.util.OrderedWorkQueue;
+import com.github.discvrseq.util.ParallelCompressingOutputStream;
+import com.github.discvrseq.util.ParallelDecompressingInputStream;
 import com.milaboratory.core.PairedEndReadsLayout;
 import com.milaboratory.core.merger.MergerParameters;
 import com.milaboratory.core.merger.MismatchOnlyPairedReadMerger;
 import com.milaboratory.core.merger.PairedReadMergingResult;
 import com.milaboratory.core.merger.QualityMergingAlgorithm;
 import com.milaboratory.core.sequence.NSequenceWithQuality;
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.fastq.AsyncFastqWriter;
+import htsjdk.samtools.fastq.BasicFastqWriter;
 import htsjdk.samtools.fastq.FastqReader;
 import htsjdk.samtools.fastq.FastqRecord;
 import htsjdk.samtools.fastq.FastqWriter;
-import htsjdk.samtools.fastq.FastqWriterFactory;
 import htsjdk.samtools.util.IOUtil;
 import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.ArgumentCollection;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.barclay.help.DocumentedFeature;
 import org.broadinstitute.hellbender.cmdline.StandardArgumentDefinitions;
 import org.broadinstitute.hellbender.engine.GATKTool;
 
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This tool accepts a pair of FASTQ files and attempts to merge each read pair into a single read, based on the values for minimumOverlap and minimalIdentity.
@@ -64,6 +80,15 @@ public class MergeFastqReads extends GATKTool {
     //@Argument(fullName = "identityType", doc = "")
     private String identityType = "Unweighted";
 
+    @Argument(fullName = "threads", doc = "The number of threads used to merge read pairs.  If greater than one, read pairs are read in batches and merged by a pool of workers, each with its own merger, while completed batches are written in input order, so the output is identical to single-threaded mode.  This is also the number of threads used to inflate each BGZF input, each of which has one more thread reading ahead in the file, and to compress the output if it is gzipped.  Other gzip inputs are decompressed on one background thread each.  In total, a run with BGZF inputs and a gzipped output uses about four times this number of threads (34 for --threads 8), which should be considered when sharing a machine.", optional = true, minValue = 1)
+    private int threads = 1;
+
+    @Argument(fullName = "compressionLevel", doc = "The compression level used if the output ends in .gz or .bgz, from 0 (fastest) to 9 (smallest).  The output is written as BGZF, which is readable as gzip, and blocks are compressed in parallel using the number of threads given by --threads.", optional = true, minValue = 0, maxValue = 9)
+    private int compressionLevel = Defaults.COMPRESSION_LEVEL;
+
+    @ArgumentCollection
+    BatchArgumentCollection batchArgs = new BatchArgumentCollection();
+
 
     @Override
     public void onTraversalStart() {
@@ -74,36 +99,23 @@ public class MergeFastqReads extends GATKTool {
         IOUtil.assertFileIsWritable(outputFile1);
     }
 
+    private long written = 0L;
+    private long failed = 0L;
+
     @Override
     public void traverse() {
-        FastqWriterFactory fact = new FastqWriterFactory();
-        fact.setUseAsyncIo(true);
-
-        MismatchOnlyPairedReadMerger merger = new MismatchOnlyPairedReadMerger(minimalOverlap, minimalIdentity, MergerParameters.DEFAULT_MAX_QUALITY_VALUE, qualityMergingAlgorithm, PairedEndReadsLayout.Opposite);
-
-        long written = 0L;
-        long failed = 0L;
-        try (FastqReader reader1 = fileToFastqReader(FASTQ); FastqReader reader2 = FASTQ2 == null ? null : fileToFastqReader(FASTQ2); FastqWriter writer1 = fact.newWriter(outputFile1)) {
-            while(reader1.hasNext())
-            {
-                FastqRecord fq1 = reader1.next();
-                FastqRecord fq2 = reader2 == null ? null : reader2.next();
-
-                NSequenceWithQuality ns1 = new NSequenceWithQuality(fq1.getReadString(), fq1.getBaseQualityString());
-                NSequenceWithQuality ns2 = new NSequenceWithQuality(fq2.getReadString(), fq2.getBaseQualityString());
-
-                PairedReadMergingResult result = merger.merge(ns1, ns2);
-                if (result.isSuccessful()) {
-                    NSequenceWithQuality merged = result.getOverlappedSequence();
-                    if (merged.getSequence().size() < minLength) {
-                        failed++;
-                    } else {
-                        writer1.write(new FastqRecord(fq1.getReadName(), merged.getSequence().toString(), fq1.getBaseQualityHeader(), merged.getQuality().toString()));
-                        written++;
-                    }
-                }
-                else {
-                    failed++;
+        try (FastqReader reader1 = fileToFastqReader(FASTQ); FastqReader reader2 = FASTQ2 == null ? null : fileToFastqReader(FASTQ2); FastqWriter writer1 = fileToFastqWriter(outputFile1)) {
+            if (threads > 1) {
+                traverseParallel(reader1, reader2, writer1);
+            }
+            else {
+                MismatchOnlyPairedReadMerger merger = createMerger();
+                while(reader1.hasNext())
+                {
+                    FastqRecord fq1 = reader1.next();
+                    FastqRecord fq2 = reader2 == null ? null : reader2.next();
+
+                    write(merge(merger, fq1, fq2), writer1);
                 }
             }
         }
@@ -112,8 +124,103 @@ public class MergeFastqReads extends GATKTool {
         logger.info("failed merge: " + failed);
     }
 
+    private MismatchOnlyPairedReadMerger createMerger() {
+        return new MismatchOnlyPairedReadMerger(minimalOverlap, minimalIdentity, MergerParameters.DEFAULT_MAX_QUALITY_VALUE, qualityMergingAlgorithm, PairedEndReadsLayout.Opposite);
+    }
+
+    /**
+     * @return The merged read, or null if the pair could not be merged or the result is shorter than minLength
+     */
+    @Nullable
+    private FastqRecord merge(MismatchOnlyPairedReadMerger merger, FastqRecord fq1, FastqRecord fq2) {
+        NSequenceWithQuality ns1 = new NSequenceWithQuality(fq1.getReadString(), fq1.getBaseQualityString());
+        NSequenceWithQuality ns2 = new NSequenceWithQuality(fq2.getReadString(), fq2.getBaseQualityString());
+
+        PairedReadMergingResult result = merger.merge(ns1, ns2);
+        if (!result.isSuccessful()) {
+            return null;
+        }
+
+        NSequenceWithQuality merged = result.getOverlappedSequence();
+        if (merged.getSequence().size() < minLength) {
+            return null;
+        }
+
+        return new FastqRecord(fq1.getReadName(), merged.getSequence().toString(), fq1.getBaseQualityHeader(), merged.getQuality().toString());
+    }
+
+    private void write(@Nullable FastqRecord merged, FastqWriter writer) {
+        if (merged == null) {
+            failed++;
+        }
+        else {
+            writer.write(merged);
+            written++;
+        }
+    }
+
+    /**
+     * Merges batches of read pairs on a pool of workers, each holding its own merger.  Completed batches are written, and counted, in input order, so the output is identical to single-threaded mode.
+     */
+    private void traverseParallel(FastqReader reader1, @Nullable FastqReader reader2, FastqWriter writer) {
+        ThreadLocal<MismatchOnlyPairedReadMerger> mergers = ThreadLocal.withInitial(this::createMerger);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            OrderedWorkQueue<ReadPairBatch, RuntimeException> queue = new OrderedWorkQueue<>(executor, threads, batch -> batch.write(writer));
+            ReadPairBatch batch = new ReadPairBatch();
+            while (reader1.hasNext()) {
+                batch.add(reader1.next(), reader2 == null ? null : reader2.next());
+
+                if (batch.size() >= batchArgs.readPairsPerBatch || !reader1.hasNext()) {
+                    final ReadPairBatch toProcess = batch;
+                    queue.submit(() -> toProcess.merge(mergers.get()));
+                    batch = new ReadPairBatch();
+                }
+            }
+
+            queue.finish();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private class ReadPairBatch {
+        private final List<FastqRecord> reads1 = new ArrayList<>(batchArgs.readPairsPerBatch);
+        private final List<FastqRecord> reads2 = new ArrayList<>(batchArgs.readPairsPerBatch);
+        private FastqRecord[] merged = null;
+
+        void add(FastqRecord fq1, @Nullable FastqRecord fq2) {
+            reads1.add(fq1);
+            reads2.add(fq2);
+        }
+
+        int size() {
+            return reads1.size();
+        }
+
+        ReadPairBatch merge(MismatchOnlyPairedReadMerger merger) {
+            merged = new FastqRecord[reads1.size()];
+            for (int i = 0; i < reads1.size(); i++) {
+                merged[i] = MergeFastqReads.this.merge(merger, reads1.get(i), reads2.get(i));
+            }
+
+            return this;
+        }
+
+        void write(FastqWriter writer) {
+            for (FastqRecord m : merged) {
+                MergeFastqReads.this.write(m, writer);
+            }
+        }
+    }
+
+    private FastqWriter fileToFastqWriter(final File file) {
+        return new AsyncFastqWriter(new BasicFastqWriter(new PrintStream(ParallelCompressingOutputStream.open(file, threads, compressionLevel))), AsyncFastqWriter.DEFAULT_QUEUE_SIZE);
+    }
+
     private FastqReader fileToFastqReader(final File file) {
-        return new FastqReader(file, true);
+        return new FastqReader(file, new BufferedReader(new InputStreamReader(ParallelDecompressingInputStream.open(file, threads), StandardCharsets.US_ASCII), Defaults.BUFFER_SIZE), true);
     }
 
 }
@@ -0,0 +1,260 @@
+package com.github.discvrseq.walkers;
+
+import com.github.discvrseq.tools.DiscvrSeqProgramGroup;
+import com.github.discvrseq.util.ParallelCompressingOutputStream;
+import com.github.discvrseq.util.ParallelDecompressingInputStream;
+import com.github.discvrseq.walkers.printreadscontaining.MatchStatistics;
+import htsjdk.samtools.Defaults;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.IOUtil;
+import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
+import org.broadinstitute.barclay.help.DocumentedFeature;
+import org.broadinstitute.hellbender.cmdline.StandardArgumentDefinitions;
+import org.broadinstitute.hellbender.engine.GATKTool;
+import org.broadinstitute.hellbender.exceptions.GATKException;
+import org.broadinstitute.hellbender.exceptions.UserException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This tool combines the outputs of PrintReadsContaining jobs run using --shardCount and --shardIndex, each processing a subset of the read pairs of the same FASTQs.
+ * The FASTQs of each shard are concatenated, so these must be given in the order of shardIndex for the output to be in input order.  Where the FASTQs of the shards and the output are both BGZF,
+ * or both uncompressed, the shards are copied without decompressing them.  The counts in --statsFile and --startPositionsFile are summed across shards, and the fraction of pairs matched
+ * is recalculated using the total pairs inspected, so these match the output of a single unsharded run.  The per-read --summaryFile of each shard is concatenated.
+ *
+ * <h3>Usage example:</h3>
+ * <pre>
+ *  java -jar DISCVRseq.jar MergePrintReadsContainingShards \
+ *     --fastq shard0_R1.fastq.gz --fastq shard1_R1.fastq.gz \
+ *     --fastq2 shard0_R2.fastq.gz --fastq2 shard1_R2.fastq.gz \
+ *     --statsFile shard0.stats.txt --statsFile shard1.stats.txt \
+ *     --outputStatsFile stats.txt \
+ *     -O output_R1.fastq.gz \
+ *     -O2 output_R2.fastq.gz
+ * </pre>
+ */
+@DocumentedFeature
+@CommandLineProgramProperties(
+        summary = "This tool combines the FASTQs, statistics and summaries written by PrintReadsContaining jobs that each processed one shard of the input.",
+        oneLineSummary = "Merges the output of sharded PrintReadsContaining jobs",
+        programGroup = DiscvrSeqProgramGroup.class
+)
+public class MergePrintReadsContainingShards extends GATKTool {
+    @Argument(fullName = "fastq", doc = "The first output FASTQ of each shard, in the order of shardIndex.", optional = true)
+    private List<File> fastqs = new ArrayList<>();
+
+    @Argument(fullName = "fastq2", doc = "The second output FASTQ of each shard, in the order of shardIndex.", optional = true)
+    private List<File> fastqs2 = new ArrayList<>();
+
+    @Argument(fullName = StandardArgumentDefinitions.OUTPUT_LONG_NAME, shortName = StandardArgumentDefinitions.OUTPUT_SHORT_NAME, doc = "The merged first FASTQ.  Required if --fastq is used.", optional = true)
+    private File outputFile1 = null;
+
+    @Argument(fullName = "output2", shortName = "O2", doc = "The merged second FASTQ.  Required if --fastq2 is used.", optional = true)
+    private File outputFile2 = null;
+
+    @Argument(fullName = "statsFile", doc = "The --statsFile of each shard, in any order.", optional = true)
+    private List<File> statsFiles = new ArrayList<>();
+
+    @Argument(fullName = "outputStatsFile", doc = "The merged --statsFile.  Required if --statsFile is used.", optional = true)
+    private File outputStatsFile = null;
+
+    @Argument(fullName = "startPositionsFile", doc = "The --startPositionsFile of each shard, in any order.  The --statsFile of each shard is also required, since this lists the expressions.", optional = true)
+    private List<File> startPositionsFiles = new ArrayList<>();
+
+    @Argument(fullName = "outputStartPositionsFile", doc = "The merged --startPositionsFile.  Required if --startPositionsFile is used.", optional = true)
+    private File outputStartPositionsFile = null;
+
+    @Argument(fullName = "summaryFile", doc = "The --summaryFile of each shard, in the order of shardIndex.", optional = true)
+    private List<File> summaryFiles = new ArrayList<>();
+
+    @Argument(fullName = "outputSummaryFile", doc = "The merged --summaryFile.  Required if --summaryFile is used.", optional = true)
+    private File outputSummaryFile = null;
+
+    @Argument(fullName = "threads", doc = "The number of threads used to decompress and compress FASTQs that cannot be copied directly, such as when the shards are uncompressed and the output is gzipped.  This many threads are used for each input being inflated, plus one reading ahead in the file, and again for the output being compressed.", optional = true, minValue = 1)
+    private int threads = 1;
+
+    @Argument(fullName = "compressionLevel", doc = "The compression level used for outputs ending in .gz or .bgz, when these are compressed rather than copied, from 0 (fastest) to 9 (smallest).", optional = true, minValue = 0, maxValue = 9)
+    private int compressionLevel = Defaults.COMPRESSION_LEVEL;
+
+    @Override
+    public void onTraversalStart() {
+        super.onTraversalStart();
+
+        validateInputs(fastqs, outputFile1, "--fastq", "--output");
+        validateInputs(fastqs2, outputFile2, "--fastq2", "--output2");
+        validateInputs(statsFiles, outputStatsFile, "--statsFile", "--outputStatsFile");
+        validateInputs(startPositionsFiles, outputStartPositionsFile, "--startPositionsFile", "--outputStartPositionsFile");
+        validateInputs(summaryFiles, outputSummaryFile, "--summaryFile", "--outputSummaryFile");
+
+        if (!fastqs2.isEmpty() && fastqs2.size() != fastqs.size()) {
+            throw new UserException.BadInput("The number of --fastq2 files must equal the number of --fastq files");
+        }
+
+        if (!startPositionsFiles.isEmpty() && statsFiles.isEmpty()) {
+            throw new UserException.BadInput("Must provide --statsFile when --startPositionsFile is used");
+        }
+    }
+
+    private void validateInputs(List<File> inputs, File output, String inputArg, String outputArg) {
+        for (File input : inputs) {
+            IOUtil.assertFileIsReadable(input);
+        }
+
+        if (output != null) {
+            if (inputs.isEmpty()) {
+                throw new UserException.BadInput("Must provide " + inputArg + " when " + outputArg + " is used");
+            }
+
+            IOUtil.assertFileIsWritable(output);
+        }
+        else if (!inputs.isEmpty()) {
+            throw new UserException.BadInput("Must provide " + outputArg + " when " + inputArg + " is used");
+        }
+    }
+
+    @Override
+    public void traverse() {
+        try {
+            if (outputFile1 != null) {
+                mergeFastqs(fastqs, outputFile1);
+            }
+
+            if (outputFile2 != null) {
+                mergeFastqs(fastqs2, outputFile2);
+            }
+
+            if (outputStatsFile != null) {
+                MatchStatistics statistics = new MatchStatistics();
+                long totalPairs = 0;
+                for (File statsFile : statsFiles) {
+                    totalPairs += statistics.readSummary(statsFile);
+                }
+
+                for (File startPositionsFile : startPositionsFiles) {
+                    statistics.readStartPositions(startPositionsFile);
+                }
+
+                statistics.writeSummary(outputStatsFile, totalPairs);
+                if (outputStartPositionsFile != null) {
+                    statistics.writeStartPositions(outputStartPositionsFile);
+                }
+
+                logger.info("total reads inspected: " + totalPairs);
+            }
+
+            if (outputSummaryFile != null) {
+                mergeSummaries(summaryFiles, outputSummaryFile);
+            }
+        }
+        catch (IOException e) {
+            throw new GATKException("There was an error writing data", e);
+        }
+    }
+
+    private void mergeFastqs(List<File> inputs, File output) throws IOException {
+        boolean outputBgzf = IOUtil.hasBlockCompressedExtension(output);
+        boolean copyDirectly = true;
+        for (File input : inputs) {
+            if (getFormat(input) != (outputBgzf ? Format.BGZF : Format.UNCOMPRESSED)) {
+                copyDirectly = false;
+                break;
+            }
+        }
+
+        if (!copyDirectly) {
+            logger.info("Converting the shards to the format of " + output.getPath() + ", since these cannot be copied directly");
+            try (OutputStream out = ParallelCompressingOutputStream.open(output, threads, compressionLevel)) {
+                for (File input : inputs) {
+                    try (InputStream in = ParallelDecompressingInputStream.open(input, threads)) {
+                        IOUtil.copyStream(in, out);
+                    }
+                }
+            }
+
+            return;
+        }
+
+        try (OutputStream out = new FileOutputStream(output)) {
+            for (File input : inputs) {
+                long length = input.length();
+                if (outputBgzf) {
+                    //BGZF files can be concatenated as-is, except that the empty block marking the end of each file is only written once, at the end
+                    switch (BlockCompressedInputStream.checkTermination(input)) {
+                        case HAS_TERMINATOR_BLOCK:
+                            length -= BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+                            break;
+                        case HAS_HEALTHY_LAST_BLOCK:
+                            break;
+                        default:
+                            throw new UserException.MalformedFile(input.toPath(), "The BGZF file is truncated or corrupt");
+                    }
+                }
+
+                try (InputStream in = new FileInputStream(input)) {
+                    IOUtil.transferByStream(in, out, length);
+                }
+            }
+
+            if (outputBgzf) {
+                out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            }
+        }
+    }
+
+    private enum Format {
+        BGZF,
+        GZIP,
+        UNCOMPRESSED
+    }
+
+    private static Format getFormat(File input) throws IOException {
+        if (IOUtil.isBlockCompressed(input.toPath())) {
+            return Format.BGZF;
+        }
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(input))) {
+            return IOUtil.isGZIPInputStream(in) ? Format.GZIP : Format.UNCOMPRESSED;
+        }
+    }
+
+    private static void mergeSummaries(List<File> inputs, File output) throws IOException {
+        String header = null;
+        try (Writer writer = IOUtil.openFileForBufferedUtf8Writing(output)) {
+            for (File input : inputs) {
+                try (BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(input)) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        throw new UserException.MalformedFile(input.toPath(), "The summary file is empty");
+                    }
+
+                    //the header is only written once
+                    if (header == null) {
+                        header = line;
+                        writer.write(header);
+                        writer.write('\n');
+                    }
+                    else if (!header.equals(line)) {
+                        throw new UserException.MalformedFile(input.toPath(), "The header of this summary file does not match the others");
+                    }
+
+                    while ((line = reader.readLine()) != null) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                }
+            }
+        }
+    }
+}
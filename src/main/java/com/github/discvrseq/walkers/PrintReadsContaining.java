@@ -2,27 +2,43 @@ package com.github.discvrseq.walkers;
 
 import au.com.bytecode.opencsv.CSVWriter;
 import com.github.discvrseq.tools.DiscvrSeqProgramGroup;
-import htsjdk.samtools.fastq.FastqReader;
-import htsjdk.samtools.fastq.FastqRecord;
-import htsjdk.samtools.fastq.FastqWriter;
-import htsjdk.samtools.fastq.FastqWriterFactory;
+import com.github.discvrseq.util.BatchArgumentCollection;
+import com.github.discvrseq.util.OrderedWorkQueue;
+import com.github.discvrseq.util.ParallelCompressingOutputStream;
+import com.github.discvrseq.walkers.printreadscontaining.ApproximateMatcher;
+import com.github.discvrseq.walkers.printreadscontaining.FastqByteReader;
+import com.github.discvrseq.walkers.printreadscontaining.FastqByteRecord;
+import com.github.discvrseq.walkers.printreadscontaining.FastqIndex;
+import com.github.discvrseq.walkers.printreadscontaining.KmerPrefilter;
+import com.github.discvrseq.walkers.printreadscontaining.LiteralMatcher;
+import com.github.discvrseq.walkers.printreadscontaining.MatchStatistics;
+import com.github.discvrseq.walkers.printreadscontaining.PairSampler;
+import htsjdk.samtools.Defaults;
 import htsjdk.samtools.util.IOUtil;
 import org.broadinstitute.barclay.argparser.Argument;
+import org.broadinstitute.barclay.argparser.ArgumentCollection;
+import org.broadinstitute.barclay.argparser.CommandLineException;
 import org.broadinstitute.barclay.argparser.CommandLineProgramProperties;
 import org.broadinstitute.barclay.help.DocumentedFeature;
 import org.broadinstitute.hellbender.engine.GATKTool;
 import org.broadinstitute.hellbender.exceptions.GATKException;
 import org.broadinstitute.hellbender.exceptions.UserException;
+import org.broadinstitute.hellbender.utils.Utils;
 
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * This walker will iterate FASTQ or pair of FASTQs and print any reads matching the supplied expressions.  Expressions can be simple strings or a java regular expression.
+ * If every expression is a literal sequence (or one anchored with ^ or $), read pairs sharing no k-mer with the expressions are rejected before matching, which does not change the output.
  *
  *
  * <h3>Usage examples:</h3>
@@ -84,6 +100,30 @@ import java.util.regex.Pattern;
  *     -O output_R1.fastq.gz \
  *     -O2 output_R2.fastq.gz
  * </pre>
+ * <h4>Reporting the pairs matched and the start positions of hits per expression, without a row per read:</h4>
+ * <pre>
+ *  java -jar DISCVRseq.jar PrintReadsContaining \
+ *     --fastq fastq_R1.fastq.gz \
+ *     --fastq2 fastq_R2.fastq.gz \
+ *     -e 'TACG' \
+ *     --statsFile stats.txt \
+ *     --startPositionsFile startPositions.txt \
+ *     --output output_R1.fastq.gz \
+ *     --output2 output_R2.fastq.gz
+ * </pre>
+ * <h4>Processing BGZF or uncompressed FASTQs as several jobs, using an index of each FASTQ, and merging the output:</h4>
+ * <pre>
+ *  java -jar DISCVRseq.jar IndexFastq --fastq fastq_R1.fastq.gz --fastq fastq_R2.fastq.gz
+ *  java -jar DISCVRseq.jar PrintReadsContaining --fastq fastq_R1.fastq.gz --fastq2 fastq_R2.fastq.gz -e 'TACG' --shardCount 2 --shardIndex 0 --statsFile shard0.stats.txt --output shard0_R1.fastq.gz --output2 shard0_R2.fastq.gz
+ *  java -jar DISCVRseq.jar PrintReadsContaining --fastq fastq_R1.fastq.gz --fastq2 fastq_R2.fastq.gz -e 'TACG' --shardCount 2 --shardIndex 1 --statsFile shard1.stats.txt --output shard1_R1.fastq.gz --output2 shard1_R2.fastq.gz
+ *  java -jar DISCVRseq.jar MergePrintReadsContainingShards \
+ *     --fastq shard0_R1.fastq.gz --fastq shard1_R1.fastq.gz \
+ *     --fastq2 shard0_R2.fastq.gz --fastq2 shard1_R2.fastq.gz \
+ *     --statsFile shard0.stats.txt --statsFile shard1.stats.txt \
+ *     --outputStatsFile stats.txt \
+ *     -O output_R1.fastq.gz \
+ *     -O2 output_R2.fastq.gz
+ * </pre>
  *
  */
 @DocumentedFeature
@@ -102,12 +142,24 @@ public class PrintReadsContaining extends GATKTool {
     @Argument(fullName="summaryFile", doc="If provided, a TSV summary of matches will be written here.", optional=true)
     public File SUMMARY_FILE;
 
-    @Argument(fullName = "output", doc = "The output file for the first FASTQ file", optional = false)
+    @Argument(fullName="statsFile", doc="If provided, a TSV with one row per expression will be written here, giving the read pairs matched and the hits on each read of the pair.  Read1Hits and Read2Hits count the hits on the reads of --fastq and --fastq2, not the strand of the match, so with --includeReverseComplement both orientations are counted together.  These are aggregated while reading, so this is much smaller than --summaryFile.  As with the log, only read pairs matching the expressions are counted, including when using --countOnly or --samplePairsPerExpression.", optional=true)
+    public File STATS_FILE;
+
+    @Argument(fullName="startPositionsFile", doc="If provided, a TSV histogram of the start positions of matches will be written here, with one row per expression and start position, giving the hits on each read of the pair, as Read1Hits and Read2Hits (see --statsFile).  Only read pairs matching the expressions are counted.", optional=true)
+    public File START_POSITIONS_FILE;
+
+    @Argument(fullName = "output", doc = "The output file for the first FASTQ file.  Required unless --countOnly is used.", optional = true)
     private File outputFile1 = null;
 
-    @Argument(fullName = "output2", doc = "The output file for the second FASTQ file.  Required if -FQ2 is used.", optional = true)
+    @Argument(fullName = "output2", doc = "The output file for the second FASTQ file.  Required if -FQ2 is used, unless --countOnly is used.", optional = true)
     private File outputFile2 = null;
 
+    @Argument(fullName = "countOnly", doc = "If provided, matching read pairs are counted but not written, and --output is not used.  The counts are reported in the log, and in --statsFile if provided.", optional = true, mutex = {"output", "output2", "samplePairsPerExpression"})
+    private boolean countOnly = false;
+
+    @Argument(fullName = "samplePairsPerExpression", doc = "If provided, rather than writing every matching read pair, a uniform random sample of up to this many pairs is kept for each expression using reservoir sampling, and the distinct sampled pairs are written in input order at the end of the run.  Memory use is bounded by this number of pairs per expression.  Counts, --statsFile and --summaryFile still include every matching pair.", optional = true, minValue = 1)
+    private Integer samplePairsPerExpression = null;
+
     @Argument(fullName = "matchAllExpressions", shortName = "ma", doc = "If provided, a read pair must match all sequences/expressions to be included.  Default: false", optional = true)
     private boolean matchAllExpressions = false;
 
@@ -129,14 +181,63 @@ public class PrintReadsContaining extends GATKTool {
     @Argument(fullName = "read2ExpressionNames", shortName = "e2n", doc = "A mechanism to allow names for each read2 expression.  If used, the number of read2 expression names (-e2n) must be equal to the number of read2 expressions (-e2).  If not provided, the expression itself will be used.", optional = true)
     private List<String> read2ExpressionNames = new ArrayList<>();
 
+    @Argument(fullName = "maxDistance", shortName = "md", doc = "The maximum number of differences tolerated when matching expressions that are literal sequences.  By default only substitutions are counted (Hamming distance); see --allowIndels.  Sequences must be no longer than 64 bases and longer than this value.  Regular expressions are always matched exactly.", optional = true, minValue = 0)
+    private int maxDistance = 0;
+
+    @Argument(fullName = "allowIndels", doc = "If used with --maxDistance, insertions and deletions are also counted as differences (edit distance).  The start of each match is the one giving the fewest differences.", optional = true)
+    private boolean allowIndels = false;
+
+    @Argument(fullName = "includeReverseComplement", shortName = "rc", doc = "If provided, expressions that are literal sequences will also match their reverse complement.  If both orientations are found in a read, the one ending first is reported.  Regular expressions are only matched as written.", optional = true)
+    private boolean includeReverseComplement = false;
+
+    @Argument(fullName = "threads", doc = "The number of threads used to test reads against the expressions.  If greater than one, read pairs are read in batches and tested by a pool of workers, while completed batches are written in input order, so the output is identical to single-threaded mode.  This is also the number of threads used to inflate each BGZF input, each of which has one more thread reading ahead in the file.  Other gzip inputs are decompressed on one background thread each.  Each output ending in .gz or .bgz is also compressed using this number of threads.  In total, a paired run with BGZF inputs and gzipped outputs uses about five times this number of threads (42 for --threads 8), which should be considered when sharing a machine.", optional = true, minValue = 1)
+    private int threads = 1;
+
+    @Argument(fullName = "compressionLevel", doc = "The compression level used for outputs ending in .gz or .bgz, from 0 (fastest) to 9 (smallest).  These outputs are written as BGZF, which is readable as gzip, and blocks are compressed in parallel using the number of threads given by --threads.", optional = true, minValue = 0, maxValue = 9)
+    private int compressionLevel = Defaults.COMPRESSION_LEVEL;
+
+    @Argument(fullName = "shardCount", doc = "If greater than one, the read pairs are divided into this many shards of consecutive pairs, and only those in the shard given by shardIndex are processed.  This requires an index of each FASTQ, created using IndexFastq, so the FASTQs must be BGZF compressed or uncompressed.  Both FASTQs are read from the same pair, in lockstep.  This allows the FASTQs to be processed by several jobs, whose outputs are then combined using MergePrintReadsContainingShards.  When combined with --samplePairsPerExpression, each shard is sampled separately.", optional = true, minValue = 1)
+    Integer shardCount = 1;
+
+    @Argument(fullName = "shardIndex", doc = "If shardCount is greater than one, the zero-based index of the shard to process.", optional = true, minValue = 0)
+    Integer shardIndex = 0;
+
+    @ArgumentCollection
+    BatchArgumentCollection batchArgs = new BatchArgumentCollection();
+
     private List<SeqPattern> eitherReadPatterns = new ArrayList<>();
     private List<SeqPattern> read1Patterns = new ArrayList<>();
     private List<SeqPattern> read2Patterns = new ArrayList<>();
 
+    //the expressions of each group that are literal sequences, which are matched together in a single pass rather than as regular expressions
+    private LiteralMatcher eitherReadLiterals = null;
+    private LiteralMatcher read1Literals = null;
+    private LiteralMatcher read2Literals = null;
+
+    private final MatchStatistics statistics = new MatchStatistics();
+
+    //if all expressions can be reduced to literal sequences, read pairs sharing no k-mer with these are rejected before matching
+    private KmerPrefilter prefilter = null;
+    private final LongAdder rejectedByPrefilter = new LongAdder();
+
+    //if sharding, the records of each FASTQ to read
+    private FastqIndex.Shard shard1 = null;
+    private FastqIndex.Shard shard2 = null;
+
     public class SeqPattern {
         Pattern pattern;
         String name;
 
+        //if this is a literal sequence matched exactly, its index (and that of its reverse complement, if searched) in the group's LiteralMatcher
+        int literalIdx = -1;
+        int reverseLiteralIdx = -1;
+
+        //if this is a literal sequence matched allowing differences
+        ApproximateMatcher approximateMatcher = null;
+
+        //the index of this expression in the MatchStatistics
+        int statisticsIdx = -1;
+
         public SeqPattern(Pattern pattern, String name)
         {
             this.pattern = pattern;
@@ -148,13 +249,19 @@ public class PrintReadsContaining extends GATKTool {
         int start;
         int end;
         String exprName;
-        FastqRecord read;
+        int statisticsIdx;
+        FastqByteRecord read;
+
+        public SeqMatch(Matcher m, SeqPattern expr, FastqByteRecord read) {
+            this(m.start(), m.end(), expr, read);
+        }
 
-        public SeqMatch(Matcher m, String name, FastqRecord read) {
-            this.start = m.start();
-            this.end = m.end();
+        public SeqMatch(int start, int end, SeqPattern expr, FastqByteRecord read) {
+            this.start = start;
+            this.end = end;
 
-            this.exprName = name;
+            this.exprName = expr.name;
+            this.statisticsIdx = expr.statisticsIdx;
             this.read = read;
         }
     }
@@ -181,17 +288,56 @@ public class PrintReadsContaining extends GATKTool {
         super.onTraversalStart();
 
         IOUtil.assertFileIsReadable(FASTQ);
-        IOUtil.assertFileIsWritable(outputFile1);
+        if (!countOnly) {
+            if (outputFile1 == null) {
+                throw new UserException.BadInput("Must provide --output unless --countOnly is used");
+            }
+
+            IOUtil.assertFileIsWritable(outputFile1);
+        }
 
         if (FASTQ2 != null) {
             IOUtil.assertFileIsReadable(FASTQ2);
-            IOUtil.assertFileIsWritable(outputFile2);
+            if (!countOnly) {
+                if (outputFile2 == null) {
+                    throw new UserException.BadInput("Must provide --output2 when --fastq2 is used, unless --countOnly is used");
+                }
+
+                IOUtil.assertFileIsWritable(outputFile2);
+            }
         }
 
         if (SUMMARY_FILE != null) {
             IOUtil.assertFileIsWritable(SUMMARY_FILE);
         }
 
+        if (STATS_FILE != null) {
+            IOUtil.assertFileIsWritable(STATS_FILE);
+        }
+
+        if (START_POSITIONS_FILE != null) {
+            IOUtil.assertFileIsWritable(START_POSITIONS_FILE);
+        }
+
+        if (shardIndex >= shardCount){
+            throw new CommandLineException.BadArgumentValue("shardIndex", String.valueOf(shardIndex), "Must be less than shardCount (" + shardCount + ")");
+        }
+
+        if (shardCount > 1){
+            FastqIndex index1 = FastqIndex.readIndex(FASTQ);
+            shard1 = index1.getShard(shardIndex, shardCount);
+            if (FASTQ2 != null){
+                FastqIndex index2 = FastqIndex.readIndex(FASTQ2);
+                if (index1.getRecordCount() != index2.getRecordCount() || index1.getRecordsPerEntry() != index2.getRecordsPerEntry()){
+                    throw new UserException.BadInput("The indexes of --fastq and --fastq2 must have the same number of records and records per entry, so that each shard holds the same read pairs");
+                }
+
+                shard2 = index2.getShard(shardIndex, shardCount);
+            }
+
+            logger.info("Processing shard " + shardIndex + " of " + shardCount + ": " + shard1.getRecordCount() + " read pairs, beginning with pair " + (shard1.getFirstRecord() + 1));
+        }
+
         if (!read2Expressions.isEmpty() && FASTQ2 == null){
             throw new UserException.BadInput("Specified --read2Expressions, but --fastq2 was not provided");
         }
@@ -209,52 +355,151 @@ public class PrintReadsContaining extends GATKTool {
         }
 
         //initialize expressions:
-        initializeExpressions(expressions, expressionNames, eitherReadPatterns);
-        initializeExpressions(read1Expressions, read1ExpressionNames, read1Patterns);
-        initializeExpressions(read2Expressions, read2ExpressionNames, read2Patterns);
+        eitherReadLiterals = initializeExpressions(expressions, expressionNames, eitherReadPatterns, "Either");
+        read1Literals = initializeExpressions(read1Expressions, read1ExpressionNames, read1Patterns, "Read1");
+        read2Literals = initializeExpressions(read2Expressions, read2ExpressionNames, read2Patterns, "Read2");
+
+        prefilter = createPrefilter();
+    }
+
+    /**
+     * @return A prefilter using the sequences each expression requires, or null if an expression is a regular expression that cannot be reduced to these, or if a sequence is too short
+     */
+    @Nullable
+    private KmerPrefilter createPrefilter() {
+        List<String> eitherRead = getRequiredSequences(expressions);
+        List<String> read1 = getRequiredSequences(read1Expressions);
+        List<String> read2 = getRequiredSequences(read2Expressions);
+        if (eitherRead == null || read1 == null || read2 == null) {
+            return null;
+        }
+
+        Set<String> read1Sequences = new LinkedHashSet<>(eitherRead);
+        read1Sequences.addAll(read1);
+        Set<String> read2Sequences = new LinkedHashSet<>(eitherRead);
+        read2Sequences.addAll(read2);
+
+        if (read1Sequences.isEmpty() && read2Sequences.isEmpty()) {
+            return null;
+        }
+
+        KmerPrefilter ret = KmerPrefilter.create(read1Sequences, read2Sequences);
+        if (ret == null) {
+            logger.info("The k-mer prefilter is not used, since the expressions include a sequence, or a part of one allowing differences, shorter than " + KmerPrefilter.MIN_K + " bases");
+        }
+        else {
+            logger.info("Using a k-mer prefilter with k = " + ret.getK());
+        }
+
+        return ret;
+    }
+
+    @Nullable
+    private List<String> getRequiredSequences(List<String> expressions) {
+        List<String> ret = new ArrayList<>();
+        for (String expression : expressions) {
+            List<String> required = KmerPrefilter.getRequiredSequences(expression, maxDistance, includeReverseComplement);
+            if (required == null) {
+                logger.info("The k-mer prefilter is not used, since this expression cannot be reduced to literal sequences: " + expression);
+                return null;
+            }
+
+            ret.addAll(required);
+        }
+
+        return ret;
     }
 
-    private void initializeExpressions(List<String> expressions, List<String> names, List<SeqPattern> target) {
+    /**
+     * @return A matcher for any expressions that are literal sequences, or null if there are none
+     */
+    @Nullable
+    private LiteralMatcher initializeExpressions(List<String> expressions, List<String> names, List<SeqPattern> target, String group) {
+        List<String> literals = new ArrayList<>();
+        int literalExpressions = 0;
         for (int i=0;i<expressions.size();i++) {
-            String name = names.isEmpty() ? expressions.get(i) : names.get(i);
-            target.add(new SeqPattern(Pattern.compile(expressions.get(i)), name));
-        };
+            String expression = expressions.get(i);
+            String name = names.isEmpty() ? expression : names.get(i);
+            SeqPattern pattern = new SeqPattern(Pattern.compile(expression), name);
+            pattern.statisticsIdx = statistics.addExpression(group, name, expression);
+            if (!LiteralMatcher.isLiteral(expression)) {
+                if (maxDistance > 0 || includeReverseComplement) {
+                    logger.warn("Expression is not a literal sequence, and will be matched exactly as written: " + expression);
+                }
+            }
+            else if (maxDistance > 0) {
+                if (expression.length() > ApproximateMatcher.MAX_LENGTH || expression.length() <= maxDistance) {
+                    throw new UserException.BadInput("When using --maxDistance, sequences must be longer than the distance and no longer than " + ApproximateMatcher.MAX_LENGTH + " bases: " + expression);
+                }
+
+                pattern.approximateMatcher = new ApproximateMatcher(expression, maxDistance, allowIndels, includeReverseComplement);
+                literalExpressions++;
+            }
+            else {
+                pattern.literalIdx = literals.size();
+                literals.add(expression);
+                literalExpressions++;
+
+                if (includeReverseComplement) {
+                    String rc = ApproximateMatcher.reverseComplement(expression);
+                    if (!rc.equals(expression)) {
+                        pattern.reverseLiteralIdx = literals.size();
+                        literals.add(rc);
+                    }
+                }
+            }
+
+            target.add(pattern);
+        }
+
+        if (literalExpressions > 0) {
+            logger.info("Expressions matched as literal sequences: " + literalExpressions + " of " + expressions.size());
+        }
+
+        return literals.isEmpty() ? null : new LiteralMatcher(literals);
     }
 
     @Override
     public void traverse() {
-        FastqWriterFactory fact = new FastqWriterFactory();
-        fact.setUseAsyncIo(true);
-
         Map<String, Long> matchCount = new HashMap<>();
+        if (samplePairsPerExpression != null) {
+            sampler = new PairSampler(eitherReadPatterns.size() + read1Patterns.size() + read2Patterns.size(), samplePairsPerExpression, Utils.getRandomGenerator());
+        }
 
-        long totalReads = 0L;
-        long written = 0L;
-        try (FastqReader reader1 = fileToFastqReader(FASTQ); FastqReader reader2 = FASTQ2 == null ? null : fileToFastqReader(FASTQ2); FastqWriter writer1 = fact.newWriter(outputFile1); FastqWriter writer2 = FASTQ2 == null ? null : fact.newWriter(outputFile2); CSVWriter csvWriter = SUMMARY_FILE == null ? null : new CSVWriter(IOUtil.openFileForBufferedUtf8Writing(SUMMARY_FILE), '\t', CSVWriter.NO_QUOTE_CHARACTER)) {
+        try (FastqByteReader reader1 = openFastq(FASTQ, shard1); FastqByteReader reader2 = FASTQ2 == null ? null : openFastq(FASTQ2, shard2); OutputStream writer1 = countOnly ? null : openFastqForWriting(outputFile1); OutputStream writer2 = FASTQ2 == null || countOnly ? null : openFastqForWriting(outputFile2); CSVWriter csvWriter = SUMMARY_FILE == null ? null : new CSVWriter(IOUtil.openFileForBufferedUtf8Writing(SUMMARY_FILE), '\t', CSVWriter.NO_QUOTE_CHARACTER)) {
             if (csvWriter != null) {
                 csvWriter.writeNext(new String[]{"ReadName", "ReadType", "ExpressionName", "Start", "End", "TotalHitsForPair"});
             }
 
-            while(reader1.hasNext())
-            {
-                FastqRecord fq1 = reader1.next();
-                FastqRecord fq2 = reader2 == null ? null : reader2.next();
-                totalReads++;
+            if (threads > 1) {
+                traverseParallel(reader1, reader2, writer1, writer2, csvWriter, matchCount);
+            }
+            else {
+                while(reader1.hasNext())
+                {
+                    FastqByteRecord fq1 = reader1.next();
+                    FastqByteRecord fq2 = reader2 == null ? null : reader2.next();
+                    totalReads++;
 
-                SeqPairMatch matches = findMatches(fq1, fq2);
-                if (matches != null) {
-                    writer1.write(fq1);
-                    if (writer2 != null){
-                        writer2.write(fq2);
-                    }
-                    written++;
+                    writeIfMatching(fq1, fq2, findMatches(fq1, fq2), writer1, writer2, csvWriter, matchCount);
+                }
+            }
 
-                    appendCounts(matchCount, matches);
+            if (sampler != null) {
+                logger.info("total sampled read pairs written: " + sampler.writeTo(writer1, writer2));
+            }
+        }
+        catch (IOException e) {
+            throw new GATKException("There was an error writing data", e);
+        }
 
-                    if (csvWriter != null) {
-                        writeMatchSummary(matches, fq1, fq2, csvWriter);
-                    }
-                }
+        try {
+            if (STATS_FILE != null) {
+                statistics.writeSummary(STATS_FILE, totalReads);
+            }
+
+            if (START_POSITIONS_FILE != null) {
+                statistics.writeStartPositions(START_POSITIONS_FILE);
             }
         }
         catch (IOException e) {
@@ -263,21 +508,120 @@ public class PrintReadsContaining extends GATKTool {
 
         logger.info("total reads inspected: " + totalReads);
         logger.info("total reads accepted: " + written);
+        if (prefilter != null) {
+            logger.info("total reads rejected by the k-mer prefilter: " + rejectedByPrefilter.sum());
+        }
         logger.info("the following counts were identified per expression.  note: each read pair can match multiple expressions, and these values represent the total matches, not total reads that were matched:");
         for (String name : matchCount.keySet()) {
             logger.info(name + ": " + matchCount.get(name));
         }
     }
 
-    private void writeMatchSummary(SeqPairMatch matches, FastqRecord fq1, FastqRecord fq2, CSVWriter csvWriter) {
+    private FastqByteReader openFastq(File fastq, @Nullable FastqIndex.Shard shard) {
+        return shard == null ? new FastqByteReader(fastq, threads) : new FastqByteReader(fastq, threads, shard.getOffset(), shard.getRecordCount());
+    }
+
+    private long totalReads = 0L;
+    private long written = 0L;
+
+    //if sampling, matching pairs are held here rather than written as they are found
+    private PairSampler sampler = null;
+
+    private void writeIfMatching(FastqByteRecord fq1, @Nullable FastqByteRecord fq2, @Nullable SeqPairMatch matches, OutputStream writer1, @Nullable OutputStream writer2, @Nullable CSVWriter csvWriter, Map<String, Long> matchCount) throws IOException {
+        if (matches == null) {
+            return;
+        }
+
+        written++;
+        if (sampler != null) {
+            for (SeqMatch m : matches.matches) {
+                sampler.offer(m.statisticsIdx, written, fq1, fq2);
+            }
+        }
+        else if (writer1 != null) {
+            //records are written as their original bytes
+            fq1.writeTo(writer1);
+            if (writer2 != null){
+                fq2.writeTo(writer2);
+            }
+        }
+
+        appendCounts(matchCount, matches);
         for (SeqMatch m : matches.matches) {
-            String readType = m.read.equals(fq1) ? "Forward" : "Reverse";
+            statistics.addMatch(m.statisticsIdx, written, m.read == fq1, m.start);
+        }
+
+        if (csvWriter != null) {
+            writeMatchSummary(matches, fq1, fq2, csvWriter);
+        }
+    }
+
+    /**
+     * Reads pairs in batches on this thread, and tests each batch against the expressions using a pool of workers.  Completed batches are written in the order they were read,
+     * and the number of batches held in memory is bounded.
+     */
+    private void traverseParallel(FastqByteReader reader1, @Nullable FastqByteReader reader2, OutputStream writer1, @Nullable OutputStream writer2, @Nullable CSVWriter csvWriter, Map<String, Long> matchCount) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            OrderedWorkQueue<ReadPairBatch, IOException> queue = new OrderedWorkQueue<>(executor, threads, batch -> batch.write(writer1, writer2, csvWriter, matchCount));
+            ReadPairBatch batch = new ReadPairBatch();
+            while (reader1.hasNext()) {
+                batch.add(reader1.next(), reader2 == null ? null : reader2.next());
+                totalReads++;
+
+                if (batch.size() >= batchArgs.readPairsPerBatch || !reader1.hasNext()) {
+                    final ReadPairBatch toProcess = batch;
+                    queue.submit(toProcess::findMatches);
+                    batch = new ReadPairBatch();
+                }
+            }
+
+            queue.finish();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private class ReadPairBatch {
+        private final List<FastqByteRecord> reads1 = new ArrayList<>(batchArgs.readPairsPerBatch);
+        private final List<FastqByteRecord> reads2 = new ArrayList<>(batchArgs.readPairsPerBatch);
+        private SeqPairMatch[] matches = null;
+
+        void add(FastqByteRecord fq1, @Nullable FastqByteRecord fq2) {
+            reads1.add(fq1);
+            reads2.add(fq2);
+        }
+
+        int size() {
+            return reads1.size();
+        }
+
+        ReadPairBatch findMatches() {
+            matches = new SeqPairMatch[reads1.size()];
+            for (int i = 0; i < reads1.size(); i++) {
+                matches[i] = PrintReadsContaining.this.findMatches(reads1.get(i), reads2.get(i));
+            }
+
+            return this;
+        }
+
+        void write(OutputStream writer1, @Nullable OutputStream writer2, @Nullable CSVWriter csvWriter, Map<String, Long> matchCount) throws IOException {
+            for (int i = 0; i < reads1.size(); i++) {
+                writeIfMatching(reads1.get(i), reads2.get(i), matches[i], writer1, writer2, csvWriter, matchCount);
+            }
+        }
+    }
+
+    private void writeMatchSummary(SeqPairMatch matches, FastqByteRecord fq1, FastqByteRecord fq2, CSVWriter csvWriter) {
+        for (SeqMatch m : matches.matches) {
+            String readType = m.read == fq1 ? "Forward" : "Reverse";
             csvWriter.writeNext(new String[]{fq1.getReadName(), readType, m.exprName, String.valueOf(m.start), String.valueOf(m.end), String.valueOf(matches.matches.size())});
         }
     }
 
-    private FastqReader fileToFastqReader(final File file) {
-        return new FastqReader(file, true);
+    private OutputStream openFastqForWriting(final File file) {
+        return ParallelCompressingOutputStream.open(file, threads, compressionLevel);
     }
 
     private void appendCounts(Map<String, Long> counts, SeqPairMatch match) {
@@ -288,11 +632,18 @@ public class PrintReadsContaining extends GATKTool {
         }
     }
 
-    public SeqPairMatch findMatches(FastqRecord read1, @Nullable FastqRecord read2) {
-        Set<SeqMatch> matches = new HashSet<>();
+    public SeqPairMatch findMatches(FastqByteRecord read1, @Nullable FastqByteRecord read2) {
+        //most pairs share no k-mer with any expression, and cannot match
+        if (prefilter != null && !prefilter.isCandidate(read1.getReadBases(), read2 == null ? null : read2.getReadBases())) {
+            rejectedByPrefilter.increment();
+            return null;
+        }
+
+        //insertion ordered, so the summary lists matches in the order of the expressions, irrespective of thread
+        Set<SeqMatch> matches = new LinkedHashSet<>();
 
         if (!eitherReadPatterns.isEmpty()) {
-            List<SeqMatch> matchesPair = inspect(eitherReadPatterns, read1, read2);
+            List<SeqMatch> matchesPair = inspect(eitherReadPatterns, eitherReadLiterals, read1, read2);
             if (!isPassing(matchesPair, eitherReadPatterns)) {
                 //NOTE: even if this fails, we might want to inspect the other expressions:
                 if (matchAllExpressions) {
@@ -305,7 +656,7 @@ public class PrintReadsContaining extends GATKTool {
         }
 
         if (!read1Patterns.isEmpty()) {
-            List<SeqMatch> matches1 = inspect(read1Patterns, read1);
+            List<SeqMatch> matches1 = inspect(read1Patterns, read1Literals, read1);
             if (!isPassing(matches1, read1Patterns)) {
                 if (matchAllExpressions) {
                     return null;
@@ -321,7 +672,7 @@ public class PrintReadsContaining extends GATKTool {
                 throw new UserException.BadInput("Specified read2 expressions, but read2 not found");
             }
             else {
-                List<SeqMatch> matches2 = inspect(read2Patterns, read2);
+                List<SeqMatch> matches2 = inspect(read2Patterns, read2Literals, read2);
                 if (!isPassing(matches2, read2Patterns)) {
                     if (matchAllExpressions) {
                         return null;
@@ -340,13 +691,54 @@ public class PrintReadsContaining extends GATKTool {
         return matchAllExpressions ? matches.size() == expressions.size() : !matches.isEmpty();
     }
 
-    private List<SeqMatch> inspect(List<SeqPattern> exprs, FastqRecord... reads) {
+    private List<SeqMatch> inspect(List<SeqPattern> exprs, @Nullable LiteralMatcher literals, FastqByteRecord... reads) {
+        //the bases are searched in place, without decoding to a String
+        CharSequence[] bases = new CharSequence[reads.length];
+        for (int i = 0; i < reads.length; i++) {
+            bases[i] = reads[i].getReadBases();
+        }
+
+        //all literal sequences are found in one pass over each read
+        int[][] literalStarts = null;
+        if (literals != null) {
+            literalStarts = new int[reads.length][literals.getSequenceCount()];
+            for (int i = 0; i < reads.length; i++) {
+                literals.findFirst(bases[i], literalStarts[i]);
+            }
+        }
+
         List<SeqMatch> matching = new ArrayList<>();
         for (SeqPattern expr : exprs) {
-            for (FastqRecord read : reads) {
-                Matcher m = expr.pattern.matcher(read.getReadString());
+            for (int i = 0; i < reads.length; i++) {
+                FastqByteRecord read = reads[i];
+                if (expr.literalIdx != -1) {
+                    //both orientations have the same length, so the first to end is also the first to start
+                    int start = literalStarts[i][expr.literalIdx];
+                    if (expr.reverseLiteralIdx != -1) {
+                        int reverseStart = literalStarts[i][expr.reverseLiteralIdx];
+                        if (reverseStart != -1 && (start == -1 || reverseStart < start)) {
+                            start = reverseStart;
+                        }
+                    }
+
+                    if (start != -1) {
+                        matching.add(new SeqMatch(start, start + expr.pattern.pattern().length(), expr, read));
+                    }
+
+                    continue;
+                }
+                else if (expr.approximateMatcher != null) {
+                    int[] startEnd = new int[2];
+                    if (expr.approximateMatcher.find(bases[i], startEnd)) {
+                        matching.add(new SeqMatch(startEnd[0], startEnd[1], expr, read));
+                    }
+
+                    continue;
+                }
+
+                Matcher m = expr.pattern.matcher(bases[i]);
                 if (m.find()) {
-                    matching.add(new SeqMatch(m, expr.name, read));
+                    matching.add(new SeqMatch(m, expr, read));
                     //break;  //NOTE: inspect both reads in case we have more than one hit
                 }
             }
@@ -0,0 +1,200 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import org.broadinstitute.hellbender.exceptions.GATKException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Estimates the abundance of each reference by expectation-maximisation over a {@link HitTable}.  Rather than collapsing ambiguous hit sets,
+ * the reads of each hit set are divided among its references in proportion to their current abundance estimates, and the estimates are then
+ * updated from those assignments until they converge.  This runs over the aggregated table, not the reads, so it is fast enough to be re-run freely.
+ *
+ * Rows are divided into a fixed number of partitions, independent of the number of threads, and partial sums are combined in partition order.
+ * The result is therefore identical whether or not an executor is used.
+ */
+public class AbundanceEstimator {
+    private static final int ROWS_PER_PARTITION = 4096;
+    private static final int MAX_PARTITIONS = 64;
+
+    private final int maxIterations;
+    private final double tolerance;
+
+    /**
+     * @param maxIterations The maximum number of iterations to run
+     * @param tolerance Iteration stops once no reference's abundance changes by more than this amount
+     */
+    public AbundanceEstimator(int maxIterations, double tolerance) {
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param executor If provided, partitions are processed in parallel using this executor
+     */
+    public Estimate estimate(HitTable table, ExecutorService executor) {
+        int nRefs = table.getReferenceCount();
+        int partitions = Math.max(1, Math.min(MAX_PARTITIONS, (table.size() + ROWS_PER_PARTITION - 1) / ROWS_PER_PARTITION));
+        int rowsPerPartition = Math.max(1, (table.size() + partitions - 1) / partitions);
+
+        //initialize using each reference's share of all reads hitting it, which is a reasonable starting point for most data
+        long totalReads = 0;
+        double[] abundance = new double[nRefs];
+        for (int row = 0; row < table.size(); row++) {
+            totalReads += table.getReadCount(row);
+            for (int rank : table.getRanks(row)) {
+                abundance[rank] += table.getReadCount(row);
+            }
+        }
+
+        if (totalReads == 0) {
+            return new Estimate(table, abundance, 0, 0, true);
+        }
+        normalize(abundance);
+
+        double[][] partialSums = new double[partitions][nRefs];
+        int iteration = 0;
+        boolean converged = false;
+        while (iteration < maxIterations && !converged) {
+            iteration++;
+
+            //E-step: divide the reads of each row among its references
+            final double[] current = abundance;
+            if (executor == null || partitions == 1) {
+                for (int p = 0; p < partitions; p++) {
+                    assignReads(table, current, p * rowsPerPartition, Math.min(table.size(), (p + 1) * rowsPerPartition), partialSums[p]);
+                }
+            }
+            else {
+                List<Future<?>> futures = new ArrayList<>(partitions);
+                for (int p = 0; p < partitions; p++) {
+                    final int start = p * rowsPerPartition;
+                    final double[] partialSum = partialSums[p];
+                    futures.add(executor.submit(() -> assignReads(table, current, start, Math.min(table.size(), start + rowsPerPartition), partialSum)));
+                }
+
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new GATKException(e.getMessage(), e);
+                    }
+                    catch (ExecutionException e) {
+                        throw new GATKException(e.getMessage(), e);
+                    }
+                }
+            }
+
+            //M-step: the new abundance is each reference's share of the assigned reads
+            double[] updated = new double[nRefs];
+            for (double[] partialSum : partialSums) {
+                for (int rank = 0; rank < nRefs; rank++) {
+                    updated[rank] += partialSum[rank];
+                }
+            }
+            normalize(updated);
+
+            double maxChange = 0;
+            for (int rank = 0; rank < nRefs; rank++) {
+                maxChange = Math.max(maxChange, Math.abs(updated[rank] - abundance[rank]));
+            }
+
+            abundance = updated;
+            converged = maxChange < tolerance;
+        }
+
+        return new Estimate(table, abundance, totalReads, iteration, converged);
+    }
+
+    private static void assignReads(HitTable table, double[] abundance, int startRow, int endRow, double[] partialSum) {
+        Arrays.fill(partialSum, 0);
+        for (int row = startRow; row < endRow; row++) {
+            int[] ranks = table.getRanks(row);
+            double denominator = 0;
+            for (int rank : ranks) {
+                denominator += abundance[rank];
+            }
+
+            if (denominator == 0) {
+                continue;
+            }
+
+            double readsPerUnit = table.getReadCount(row) / denominator;
+            for (int rank : ranks) {
+                partialSum[rank] += abundance[rank] * readsPerUnit;
+            }
+        }
+    }
+
+    private static void normalize(double[] values) {
+        double total = 0;
+        for (double v : values) {
+            total += v;
+        }
+
+        if (total > 0) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] /= total;
+            }
+        }
+    }
+
+    /**
+     * The estimated abundance of each reference.  This holds reference names independently of the table, so it remains valid after the table is filtered.
+     */
+    public static class Estimate {
+        private final String[] refNames;
+        private final double[] abundance;
+        private final long totalReads;
+        private final int iterations;
+        private final boolean converged;
+
+        private Estimate(HitTable table, double[] abundance, long totalReads, int iterations, boolean converged) {
+            this.refNames = new String[table.getReferenceCount()];
+            for (int rank = 0; rank < refNames.length; rank++) {
+                refNames[rank] = table.getRefName(rank);
+            }
+
+            this.abundance = abundance;
+            this.totalReads = totalReads;
+            this.iterations = iterations;
+            this.converged = converged;
+        }
+
+        /**
+         * @return The number of references, in name order.  References are identified by their index in this order.
+         */
+        public int getReferenceCount() {
+            return refNames.length;
+        }
+
+        public String getRefName(int idx) {
+            return refNames[idx];
+        }
+
+        /**
+         * @return The estimated fraction of reads originating from this reference
+         */
+        public double getAbundance(int idx) {
+            return abundance[idx];
+        }
+
+        public double getEstimatedReads(int idx) {
+            return abundance[idx] * totalReads;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public boolean isConverged() {
+            return converged;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tracks the reads that aligned to a given reference, but were not counted due to mismatches or lack of a valid pair.
+ */
+public class AlignmentMismatch {
+    private final String refName;
+    private int totalReads = 0;
+    private final Set<String> reasonsForFailure = new HashSet<>();
+
+    public AlignmentMismatch(String refName){
+        this.refName = refName;
+    }
+
+    public void addRead(String reason){
+        totalReads++;
+        reasonsForFailure.add(reason);
+    }
+
+    public void addReads(int count){
+        totalReads += count;
+    }
+
+    public void append(AlignmentMismatch other){
+        totalReads += other.totalReads;
+        reasonsForFailure.addAll(other.reasonsForFailure);
+    }
+
+    public String getRefName() {
+        return refName;
+    }
+
+    public int getTotalReads() {
+        return totalReads;
+    }
+
+    public Set<String> getReasonsForFailure() {
+        return reasonsForFailure;
+    }
+}
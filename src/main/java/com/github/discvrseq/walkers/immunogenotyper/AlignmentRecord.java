@@ -0,0 +1,159 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import htsjdk.samtools.util.SortingCollection;
+import org.broadinstitute.hellbender.exceptions.GATKException;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+/**
+ * The subset of an alignment used by {@link ReadAlignmentsTracker}.  When the input is not queryname sorted, these are collected into a {@link SortingCollection}
+ * keyed on read name, which spills to disk as needed, and then replayed in read name order.  Only a few bytes per alignment are sorted, rather than full SAM records.
+ */
+public final class AlignmentRecord {
+    private static final int FORWARD = 1;
+    private static final int REVERSE = 2;
+    private static final int LOW_MAPQ = 4;
+
+    private final String readName;
+    private final int sampleId;
+    private final int contigIndex;
+    private final int nm;
+    private final int length;
+    private final int flags;
+
+    private AlignmentRecord(String readName, int sampleId, int contigIndex, int nm, int length, int flags) {
+        this.readName = readName;
+        this.sampleId = sampleId;
+        this.contigIndex = contigIndex;
+        this.nm = nm;
+        this.length = length;
+        this.flags = flags;
+    }
+
+    /**
+     * @param sampleId Identifies the sample of this read, if reads are being grouped by sample
+     * @param isForward True if this is the first read of a pair, or an unpaired read
+     * @param isReverse True if this is the second read of a pair
+     */
+    public static AlignmentRecord create(String readName, int sampleId, int contigIndex, int nm, int length, boolean isForward, boolean isReverse) {
+        return new AlignmentRecord(readName, sampleId, contigIndex, nm, length, (isForward ? FORWARD : 0) | (isReverse ? REVERSE : 0));
+    }
+
+    /**
+     * Creates a record for an alignment below the minimum MAPQ, which is only counted.
+     */
+    public static AlignmentRecord createLowMapq(String readName, int sampleId) {
+        return new AlignmentRecord(readName, sampleId, -1, 0, 0, LOW_MAPQ);
+    }
+
+    public String getReadName() {
+        return readName;
+    }
+
+    public int getSampleId() {
+        return sampleId;
+    }
+
+    /**
+     * Adds this alignment to the tracker for its read.
+     */
+    public void addTo(ReadAlignmentsTracker tracker) {
+        if ((flags & LOW_MAPQ) != 0) {
+            tracker.addLowMapqAlignment();
+        }
+        else {
+            tracker.addAlignment(contigIndex, nm, length, (flags & FORWARD) != 0, (flags & REVERSE) != 0);
+        }
+    }
+
+    public static SortingCollection<AlignmentRecord> newSortingCollection(int maxRecordsInRam, Path tmpDir) {
+        return SortingCollection.newInstance(AlignmentRecord.class, new Codec(), new ReadNameComparator(), maxRecordsInRam, tmpDir);
+    }
+
+    /**
+     * Orders records by read name, and then sample.  The remaining fields only serve to make the order deterministic, since the tracker does not depend on the order of alignments within a read.
+     */
+    private static final class ReadNameComparator implements Comparator<AlignmentRecord>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int compare(AlignmentRecord o1, AlignmentRecord o2) {
+            int ret = o1.readName.compareTo(o2.readName);
+            if (ret == 0) {
+                ret = Integer.compare(o1.sampleId, o2.sampleId);
+            }
+            if (ret == 0) {
+                ret = Integer.compare(o1.contigIndex, o2.contigIndex);
+            }
+            if (ret == 0) {
+                ret = Integer.compare(o1.flags, o2.flags);
+            }
+            if (ret == 0) {
+                ret = Integer.compare(o1.nm, o2.nm);
+            }
+            if (ret == 0) {
+                ret = Integer.compare(o1.length, o2.length);
+            }
+
+            return ret;
+        }
+    }
+
+    private static final class Codec implements SortingCollection.Codec<AlignmentRecord> {
+        private DataOutputStream out;
+        private DataInputStream in;
+
+        @Override
+        public void setOutputStream(OutputStream os) {
+            out = new DataOutputStream(os);
+        }
+
+        @Override
+        public void setInputStream(InputStream is) {
+            in = new DataInputStream(is);
+        }
+
+        @Override
+        public void encode(AlignmentRecord val) {
+            try {
+                out.writeUTF(val.readName);
+                out.writeInt(val.sampleId);
+                out.writeInt(val.contigIndex);
+                out.writeInt(val.nm);
+                out.writeInt(val.length);
+                out.writeByte(val.flags);
+            }
+            catch (IOException e) {
+                throw new GATKException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public AlignmentRecord decode() {
+            String readName;
+            try {
+                readName = in.readUTF();
+            }
+            catch (EOFException e) {
+                return null;
+            }
+            catch (IOException e) {
+                throw new GATKException(e.getMessage(), e);
+            }
+
+            try {
+                return new AlignmentRecord(readName, in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readByte());
+            }
+            catch (IOException e) {
+                throw new GATKException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public Codec clone() {
+            return new Codec();
+        }
+    }
+}
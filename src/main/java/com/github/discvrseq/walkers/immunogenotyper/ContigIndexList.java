@@ -0,0 +1,130 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of contig indices (from the sequence dictionary).  Values are appended as-is, and only sorted and de-duplicated when read.
+ * Most reads align to a single contig, so until a second distinct value is added the value is held in a field and no array is allocated.
+ */
+final class ContigIndexList {
+    private static final int[] EMPTY = new int[0];
+
+    //null until a second distinct value is added, after which all values are held in this array
+    private int[] values = null;
+    private int singleValue;
+    private int size = 0;
+
+    void add(int contigIndex) {
+        if (values == null) {
+            if (size == 0) {
+                singleValue = contigIndex;
+                size = 1;
+                return;
+            }
+            else if (singleValue == contigIndex) {
+                return;
+            }
+
+            values = new int[4];
+            values[0] = singleValue;
+        }
+        else if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+
+        values[size++] = contigIndex;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The distinct contig indices, in ascending order
+     */
+    int[] toSortedArray() {
+        if (size == 0) {
+            return EMPTY;
+        }
+        else if (values == null) {
+            return new int[]{singleValue};
+        }
+
+        int[] ret = Arrays.copyOf(values, size);
+        Arrays.sort(ret);
+
+        int distinct = 1;
+        for (int i = 1; i < ret.length; i++) {
+            if (ret[i] != ret[distinct - 1]) {
+                ret[distinct++] = ret[i];
+            }
+        }
+
+        return distinct == ret.length ? ret : Arrays.copyOf(ret, distinct);
+    }
+
+    /**
+     * @return The values present in both sorted arrays
+     */
+    static int[] intersect(int[] a, int[] b) {
+        //commonly both mates hit the same single contig
+        if (a.length == 1 && b.length == 1) {
+            return a[0] == b[0] ? a : EMPTY;
+        }
+
+        int[] ret = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            }
+            else if (a[i] > b[j]) {
+                j++;
+            }
+            else {
+                ret[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return n == ret.length ? ret : Arrays.copyOf(ret, n);
+    }
+
+    /**
+     * @return The distinct values present in either sorted array
+     */
+    static int[] union(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        else if (b.length == 0) {
+            return a;
+        }
+        else if (a.length == 1 && b.length == 1 && a[0] == b[0]) {
+            return a;
+        }
+
+        int[] ret = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                ret[n++] = a[i++];
+            }
+            else if (i == a.length || b[j] < a[i]) {
+                ret[n++] = b[j++];
+            }
+            else {
+                ret[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return n == ret.length ? ret : Arrays.copyOf(ret, n);
+    }
+}
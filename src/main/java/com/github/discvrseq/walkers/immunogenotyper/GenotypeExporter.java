@@ -0,0 +1,181 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import htsjdk.samtools.util.IOUtil;
+import org.apache.commons.lang.StringUtils;
+import org.broadinstitute.hellbender.exceptions.GATKException;
+import org.broadinstitute.hellbender.utils.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Performs the filtering of a {@link ReferenceMatchTracker} and writes the resulting tables, using the options in {@link GenotypeFilterArgumentCollection}.
+ */
+public class GenotypeExporter {
+    public static final String GENOTYPE_EXTENSION = ".genotypes.txt";
+    public static final String MISMATCH_EXTENSION = ".mismatches.txt";
+    public static final String SUMMARY_EXTENSION = ".summary.txt";
+    public static final String ABUNDANCE_EXTENSION = ".abundance.txt";
+
+    private static final int EM_MAX_ITERATIONS = 1000;
+    private static final double EM_TOLERANCE = 1e-8;
+
+    private final GenotypeFilterArgumentCollection args;
+    private final Map<String, String> nameToLineageMap = new HashMap<>();
+
+    public GenotypeExporter(GenotypeFilterArgumentCollection args){
+        this.args = args;
+
+        if (args.referenceToLineageFile != null){
+            try(BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(args.referenceToLineageFile)) {
+                String line;
+                while ((line = reader.readLine()) != null){
+                    line = StringUtils.trimToNull(line);
+                    if (line == null){
+                        continue;
+                    }
+
+                    String[] cells = line.split("\t");
+                    if (cells.length < 2){
+                        throw new GATKException("Reference to Lineage/Allotype file must have two values per line");
+                    }
+
+                    if (nameToLineageMap.containsKey(cells[0])){
+                        throw new GATKException("Each reference can only be provided once in the Lineage/Allotype file: " + cells[0]);
+                    }
+
+                    nameToLineageMap.put(cells[0], cells[1]);
+                }
+            }
+            catch (IOException e){
+                throw new GATKException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Filters the hits of the provided tracker, and writes the genotype, summary and mismatch tables using the provided prefix.  This modifies the tracker's hit table.
+     * @param readFile If provided, the final group of each read will be written to this file.  This requires the tracker to have a {@link ReadNameIndex}.
+     * @param executor If provided, this will be used to parallelize abundance estimation and lineage filtering
+     */
+    public void filterAndExport(String prefix, ReferenceMatchTracker refTracker, File readFile, ExecutorService executor){
+        NumberFormat numberFormat = NumberFormat.getNumberInstance();
+        numberFormat.setMinimumFractionDigits(3);
+
+        //summary messages are written as they are generated
+        Path summaryFile = IOUtils.getPath(prefix + SUMMARY_EXTENSION);
+        Path outputFile = IOUtils.getPath(prefix + GENOTYPE_EXTENSION);
+        IOUtil.assertFilesAreWritable(Arrays.asList(summaryFile.toFile(), outputFile.toFile()));
+        try (PrintWriter summaryWriter = new PrintWriter(IOUtil.openFileForBufferedWriting(summaryFile.toFile()))){
+            Consumer<String> messages = summaryWriter::println;
+
+            //perform filtering of hits
+            double total = (double)refTracker.getReadPairsNoHits() + refTracker.getReadPairsWithHits();
+            messages.accept("Read pairs with hits: " + refTracker.getReadPairsWithHits() + " (" + numberFormat.format(refTracker.getReadPairsWithHits() / total) + ")");
+            messages.accept("Read pairs without hits: " + refTracker.getReadPairsNoHits() + " (" + numberFormat.format(refTracker.getReadPairsNoHits() / total) + ")");
+            messages.accept("Failed due to MAPQ: " + refTracker.getTotalReadsFailedForMapq() + " (" + numberFormat.format(refTracker.getTotalReadsFailedForMapq() / total) + ")");
+            messages.accept("Failed due to length: " + refTracker.getTotalReadsFailedForLength() + " (" + numberFormat.format(refTracker.getTotalReadsFailedForLength() / total) + ")");
+            messages.accept("Failed due to no valid pair: " + refTracker.getTotalReadsFailedForValidPair() + " (" + numberFormat.format(refTracker.getTotalReadsFailedForValidPair() / total) + ")");
+            messages.accept("Failed due to mismatches: " + refTracker.getTotalAlignmentsFailedForMismatch() + " (" + numberFormat.format(refTracker.getTotalAlignmentsFailedForMismatch() / total) + ")");
+
+            //this must run before filtering, which modifies the hit table
+            AbundanceEstimator.Estimate estimate = null;
+            if (args.estimateAbundance){
+                estimate = new AbundanceEstimator(EM_MAX_ITERATIONS, EM_TOLERANCE).estimate(refTracker.getHitTable(), executor);
+                messages.accept("Abundance estimation " + (estimate.isConverged() ? "converged" : "did not converge") + " after " + estimate.getIterations() + " iterations");
+            }
+
+            refTracker.filterByReference(args.minReadCountForRef, args.minPctForRef, messages);
+            refTracker.filterByLineage(nameToLineageMap, args.minPctForLineageFiltering, messages, executor);
+
+            //write out tables
+            try (PrintWriter outWriter = new PrintWriter(IOUtil.openFileForBufferedWriting(outputFile.toFile()))){
+                outWriter.println(StringUtils.join(Arrays.asList("RefNames", "Lineage/Allotypes", "TotalReads", "PercentOfTotal", "PercentOfTotalIncludingUnmapped"), "\t"));
+
+                messages.accept("Exporting final groups:");
+
+                int groupsSkipped = 0;
+                HitTable hitTable = refTracker.getHitTable();
+                BitSet exportedRows = new BitSet(hitTable.size());
+                for (int row = 0; row < hitTable.size(); row++) {
+                    int readCount = hitTable.getReadCount(row);
+                    Double pct = readCount / (double) refTracker.getReadPairsWithHits();
+                    Double pct2 = readCount / (double)(refTracker.getReadPairsWithHits() + refTracker.getReadPairsNoHits());
+
+                    if (readCount < args.minReadCountForExport){
+                        messages.accept("Discarded due to count: " + hitTable.getKey(row) + " / " + readCount + " / " + numberFormat.format(pct));
+                        groupsSkipped++;
+                        continue;
+                    }
+
+                    if (pct < args.minPctForExport){
+                        messages.accept("Discarded due to percent: " + hitTable.getKey(row) + " / " + readCount + " / " + numberFormat.format(pct));
+                        groupsSkipped++;
+                        continue;
+                    }
+
+                    outWriter.println(StringUtils.join(Arrays.asList(
+                            StringUtils.join(hitTable.getRefNames(row), ","),
+                            StringUtils.join(hitTable.getLineages(row, nameToLineageMap), ","),
+                            String.valueOf(readCount),
+                            numberFormat.format(pct),
+                            numberFormat.format(pct2)
+                    ), "\t"));
+                    exportedRows.set(row);
+                }
+
+                messages.accept("Groups skipped due to low read count or percent: " + groupsSkipped);
+
+                if (readFile != null){
+                    refTracker.getReadNameIndex().writeReadAssignments(readFile, hitTable, nameToLineageMap, exportedRows);
+                }
+            }
+
+            if (estimate != null){
+                writeAbundance(IOUtils.getPath(prefix + ABUNDANCE_EXTENSION), estimate, numberFormat);
+            }
+        }
+
+        Path mismatchFile = IOUtils.getPath(prefix + MISMATCH_EXTENSION);
+        IOUtil.assertFilesAreWritable(Arrays.asList(mismatchFile.toFile()));
+        try (PrintWriter outWriter = new PrintWriter(IOUtil.openFileForBufferedWriting(mismatchFile.toFile()))){
+            outWriter.println(StringUtils.join(Arrays.asList("RefName", "TotalReads", "ReasonForFailure"), "\t"));
+            for (String refName : refTracker.getMismatchMap().keySet()){
+                AlignmentMismatch am = refTracker.getMismatchMap().get(refName);
+                outWriter.println(StringUtils.join(Arrays.asList(
+                    refName,
+                    String.valueOf(am.getTotalReads()),
+                    StringUtils.join(am.getReasonsForFailure(), ",")
+                ), "\t"));
+            }
+        }
+    }
+
+    private void writeAbundance(Path abundanceFile, AbundanceEstimator.Estimate estimate, NumberFormat numberFormat){
+        IOUtil.assertFilesAreWritable(Arrays.asList(abundanceFile.toFile()));
+        try (PrintWriter outWriter = new PrintWriter(IOUtil.openFileForBufferedWriting(abundanceFile.toFile()))){
+            outWriter.println(StringUtils.join(Arrays.asList("RefName", "Lineage/Allotypes", "EstimatedReads", "Abundance"), "\t"));
+            for (int i = 0; i < estimate.getReferenceCount(); i++){
+                double abundance = estimate.getAbundance(i);
+                if (abundance == 0 || abundance < args.minAbundanceForExport){
+                    continue;
+                }
+
+                String refName = estimate.getRefName(i);
+                outWriter.println(StringUtils.join(Arrays.asList(
+                        refName,
+                        nameToLineageMap.containsKey(refName) ? nameToLineageMap.get(refName) : refName,
+                        numberFormat.format(estimate.getEstimatedReads(i)),
+                        numberFormat.format(abundance)
+                ), "\t"));
+            }
+        }
+    }
+}
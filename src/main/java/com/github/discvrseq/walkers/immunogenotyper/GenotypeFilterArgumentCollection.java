@@ -0,0 +1,38 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import org.broadinstitute.barclay.argparser.Argument;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * The arguments controlling how hit sets are filtered and exported.  These are shared by ImmunoGenotyper and ImmunoGenotyperRefilter, so a saved hit table can be
+ * re-filtered using exactly the same options as the original run.
+ */
+public class GenotypeFilterArgumentCollection implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Argument(fullName = "minPctForRef", shortName = "minPctForRef", doc = "This is part of the filtering strategy for ambiguous hits.  If provided, any reference with fewer than this fraction of reads mapping to it (of the total reads mapping) will be discarded.", optional = true, maxValue = 1.0, minValue = 0.0)
+    public Double minPctForRef = 0.01;
+
+    @Argument(fullName = "minReadCountForRef", shortName = "minReadCountForRef", doc = "This is part of the filtering strategy for ambiguous hits.  If provided, any reference with fewer than the provided number of reads mapping to it will be discarded.", optional = true, minValue = 0)
+    public Integer minReadCountForRef = 5;
+
+    @Argument(fullName = "minPctForLineageFiltering", shortName = "minPctForLineageFiltering", doc = "This is part of the filtering strategy for ambiguous hits.  If provided, references will be grouped by lineage/allotype (based on the supplied file).  Within each group any hit sets below this threshold will be ignored.  Of the remaining, if any alleles are present across all groups, only those hits will be retained.", optional = true, maxValue = 1.0, minValue = 0.0)
+    public Double minPctForLineageFiltering = 0.01;
+
+    @Argument(fullName = "referenceToLineageFile", shortName = "referenceToLineageFile", doc = "This is a simple tab-delimited file, no header, with two columns.  The first is the reference name, identical to that provided in the FASTA/BAM.  The second column is the lineage/allotype of this sequence.  This is used for grouping purposes and filtering.", optional = true)
+    public File referenceToLineageFile;
+
+    @Argument(fullName = "minPctForExport", shortName = "minPctForExport", doc = "If provided, any genotype representing fewer than this fraction of mapped reads will be discarded.", optional = true, maxValue = 1.0, minValue = 0.0)
+    public Double minPctForExport = 0.00;
+
+    @Argument(fullName = "minReadCountForExport", shortName = "minReadCountForExport", doc = "This is part of the filtering strategy for ambiguous hits.  If provided, any genotype with fewer than the provided number of reads will be discarded.", optional = true, minValue = 0)
+    public Integer minReadCountForExport = 5;
+
+    @Argument(fullName = "estimateAbundance", shortName = "estimateAbundance", doc = "If true, the abundance of each reference will be estimated by expectation-maximisation over all hit sets, prior to any filtering, and written to a separate table.  Rather than collapsing ambiguous hit sets, this divides the reads of each set among its references in proportion to their estimated abundance.", optional = true)
+    public boolean estimateAbundance = false;
+
+    @Argument(fullName = "minAbundanceForExport", shortName = "minAbundanceForExport", doc = "If abundance estimation is used, any reference with an estimated abundance below this fraction of mapped reads will be omitted from the abundance table.", optional = true, maxValue = 1.0, minValue = 0.0)
+    public Double minAbundanceForExport = 0.0001;
+}
@@ -0,0 +1,43 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import java.util.Arrays;
+
+/**
+ * Identifies a hit set by the sorted indices of its contigs in the sequence dictionary, with a precomputed hash.
+ * This is used during traversal in place of a string key, so the per-read work does not need to join or hash contig names.
+ */
+public final class HitKey {
+    private final int[] contigIndices;
+    private final int hash;
+
+    /**
+     * @param contigIndices The distinct contig indices, in ascending order.  This array is not copied.
+     */
+    public HitKey(int[] contigIndices) {
+        this.contigIndices = contigIndices;
+        this.hash = Arrays.hashCode(contigIndices);
+    }
+
+    public int[] getContigIndices() {
+        return contigIndices;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof HitKey)) {
+            return false;
+        }
+
+        HitKey other = (HitKey) o;
+        return hash == other.hash && Arrays.equals(contigIndices, other.contigIndices);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
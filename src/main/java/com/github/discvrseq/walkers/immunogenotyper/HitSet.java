@@ -0,0 +1,64 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+/**
+ * Represents a distinct set of references, along with the number of reads that aligned to exactly this set.
+ * References are held as indices into the sequence dictionary.  These are accumulated during traversal, and then converted to a {@link HitTable} for filtering and output.
+ * Read names are not retained here; see {@link ReadNameIndex} if per-read output is needed.
+ */
+public class HitSet {
+    private final int[] contigIndices;
+
+    private int readCount = 0;
+    private int forward = 0;
+    private int reverse = 0;
+
+    /**
+     * @param contigIndices The distinct contig indices, in ascending order
+     */
+    public HitSet(int[] contigIndices) {
+        this.contigIndices = contigIndices;
+    }
+
+    public void append(HitSet other) {
+        forward += other.forward;
+        reverse += other.reverse;
+        readCount += other.readCount;
+    }
+
+    /**
+     * Adds previously accumulated counts, such as those loaded from a saved hit table.
+     */
+    public void addReads(int readCount, int forwardCount, int reverseCount) {
+        this.readCount += readCount;
+        this.forward += forwardCount;
+        this.reverse += reverseCount;
+    }
+
+    public void addRead(boolean isForward, boolean isReverse){
+        readCount++;
+
+        if (isForward){
+            forward++;
+        }
+
+        if (isReverse){
+            reverse++;
+        }
+    }
+
+    public int getReadCount() {
+        return readCount;
+    }
+
+    public int getForwardCount() {
+        return forward;
+    }
+
+    public int getReverseCount() {
+        return reverse;
+    }
+
+    public int[] getContigIndices() {
+        return contigIndices;
+    }
+}
@@ -0,0 +1,480 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.broadinstitute.hellbender.exceptions.GATKException;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * A columnar table of hit sets, with one row per distinct set of references holding the read counts for that set.
+ * The references of each row are stored as their rank within the name-sorted sequence dictionary, so the references of a row are always in name order,
+ * and rows are kept sorted by their references.  The filters operate in place over these columns, rather than building new maps of hit sets.
+ *
+ * Each operation that can merge or remove rows returns an array giving the new row of each pre-existing row (or -1 if that row was removed),
+ * which allows per-read assignments (see {@link ReadNameIndex}) to follow the rows.
+ */
+public class HitTable {
+    private static final Logger logger = LogManager.getLogger(HitTable.class);
+
+    //lineages are divided into at most this many tasks when filtering in parallel
+    private static final int MAX_LINEAGE_PARTITIONS = 64;
+
+    private final String[] namesByRank;
+    private final int[] rankByContig;
+
+    private int[][] members;
+    private int[] readCounts;
+    private int[] forward;
+    private int[] reverse;
+    private int size = 0;
+
+    public HitTable(SAMSequenceDictionary dictionary, int expectedRows) {
+        int nContigs = dictionary.size();
+        Integer[] contigsByName = new Integer[nContigs];
+        for (int i = 0; i < nContigs; i++) {
+            contigsByName[i] = i;
+        }
+        Arrays.sort(contigsByName, Comparator.comparing(i -> dictionary.getSequence(i).getSequenceName()));
+
+        namesByRank = new String[nContigs];
+        rankByContig = new int[nContigs];
+        for (int rank = 0; rank < nContigs; rank++) {
+            namesByRank[rank] = dictionary.getSequence(contigsByName[rank]).getSequenceName();
+            rankByContig[contigsByName[rank]] = rank;
+        }
+
+        int capacity = Math.max(expectedRows, 1);
+        members = new int[capacity][];
+        readCounts = new int[capacity];
+        forward = new int[capacity];
+        reverse = new int[capacity];
+    }
+
+    /**
+     * Appends a row.  {@link #sortAndCollapse()} must be called after adding rows, before the table is used.
+     * @param contigIndices The distinct contig indices of this hit set
+     * @return The index of the new row
+     */
+    public int addRow(int[] contigIndices, int readCount, int forwardCount, int reverseCount) {
+        if (size == members.length) {
+            int capacity = size * 2;
+            members = Arrays.copyOf(members, capacity);
+            readCounts = Arrays.copyOf(readCounts, capacity);
+            forward = Arrays.copyOf(forward, capacity);
+            reverse = Arrays.copyOf(reverse, capacity);
+        }
+
+        int[] ranks = new int[contigIndices.length];
+        for (int i = 0; i < contigIndices.length; i++) {
+            ranks[i] = rankByContig[contigIndices[i]];
+        }
+        Arrays.sort(ranks);
+
+        members[size] = ranks;
+        readCounts[size] = readCount;
+        forward[size] = forwardCount;
+        reverse[size] = reverseCount;
+
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getReadCount(int row) {
+        return readCounts[row];
+    }
+
+    public int getForwardCount(int row) {
+        return forward[row];
+    }
+
+    public int getReverseCount(int row) {
+        return reverse[row];
+    }
+
+    /**
+     * @return The number of references in the sequence dictionary, which is the range of the ranks held by each row
+     */
+    int getReferenceCount() {
+        return namesByRank.length;
+    }
+
+    String getRefName(int rank) {
+        return namesByRank[rank];
+    }
+
+    /**
+     * @return The ranks of the references in this row, in ascending order.  This array should not be modified.
+     */
+    int[] getRanks(int row) {
+        return members[row];
+    }
+
+    public List<String> getRefNames(int row) {
+        List<String> ret = new ArrayList<>(members[row].length);
+        for (int rank : members[row]) {
+            ret.add(namesByRank[rank]);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return The reference names of this row joined with "||", which identifies the row in the summary
+     */
+    public String getKey(int row) {
+        return StringUtils.join(getRefNames(row), "||");
+    }
+
+    /**
+     * @return The distinct lineages of the references in this row, using the reference name for any reference without a lineage
+     */
+    public Set<String> getLineages(int row, Map<String, String> referenceToLineageMap) {
+        TreeSet<String> ret = new TreeSet<>();
+        for (int rank : members[row]) {
+            String refName = namesByRank[rank];
+            ret.add(referenceToLineageMap.containsKey(refName) ? referenceToLineageMap.get(refName) : refName);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Removes references that do not meet the minimum read count or percent of all reads from every row, and then merges rows whose remaining references are identical.
+     * Rows left without any references are removed.
+     * @return The new row of each pre-existing row, or -1 if removed
+     */
+    public int[] filterByReference(Integer minReadCountForRef, Double minPctForRef, Consumer<String> messages) {
+        messages.accept("Filtering by reference:");
+
+        //build total by ref
+        int[] totalByRank = new int[namesByRank.length];
+        int totalReads = 0;
+        for (int row = 0; row < size; row++) {
+            for (int rank : members[row]) {
+                totalByRank[rank] += readCounts[row];
+            }
+
+            totalReads += readCounts[row];
+        }
+
+        //make blacklist
+        boolean[] disallowed = new boolean[namesByRank.length];
+        boolean anyDisallowed = false;
+        for (int rank = 0; rank < namesByRank.length; rank++) {
+            int totalForRef = totalByRank[rank];
+            if (totalForRef == 0) {
+                continue;
+            }
+
+            double pct = ((double) totalForRef / totalReads);
+            if (minReadCountForRef != null && totalForRef < minReadCountForRef) {
+                messages.accept("Discarded due to read count: " + namesByRank[rank] + " / " + totalForRef + " / " + pct);
+                disallowed[rank] = true;
+                anyDisallowed = true;
+            }
+            else if (minPctForRef != null && pct < minPctForRef) {
+                messages.accept("Discarded due to percent: " + namesByRank[rank] + " / " + totalForRef + " / " + pct);
+                disallowed[rank] = true;
+                anyDisallowed = true;
+            }
+        }
+
+        //then actually use these for filtering
+        int sizeBefore = size;
+        if (anyDisallowed) {
+            for (int row = 0; row < size; row++) {
+                members[row] = removeDisallowed(members[row], disallowed);
+            }
+        }
+        int[] newRowByOldRow = sortAndCollapse();
+
+        messages.accept("Groups before/after filtering by reference: " + sizeBefore + "/" + size);
+
+        return newRowByOldRow;
+    }
+
+    private static int[] removeDisallowed(int[] ranks, boolean[] disallowed) {
+        int n = 0;
+        for (int rank : ranks) {
+            if (!disallowed[rank]) {
+                n++;
+            }
+        }
+
+        if (n == ranks.length) {
+            return ranks;
+        }
+        else if (n == 0) {
+            return null;
+        }
+
+        int[] ret = new int[n];
+        n = 0;
+        for (int rank : ranks) {
+            if (!disallowed[rank]) {
+                ret[n++] = rank;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * For each lineage, the rows whose references all belong to that lineage and which hold at least the minimum percent of that lineage's reads
+     * are merged into one row containing only the references shared by all of them.  Rows are left as-is if there are no shared references.
+     * Since each row belongs to at most one lineage, lineages are independent, and are processed in parallel if an executor is provided.
+     * @return The new row of each pre-existing row
+     */
+    public int[] filterByLineage(LineageIndex lineageIndex, double minPctForLineageFiltering, Consumer<String> messages, ExecutorService executor) {
+        if (lineageIndex.getReferenceCount() != namesByRank.length) {
+            throw new IllegalArgumentException("The lineage index was not built for this table");
+        }
+
+        //find rows with a single distinct lineage.  if any references lack a lineage, keep the row as-is
+        int nLineages = lineageIndex.getLineageCount();
+        int[] lineageByRow = new int[size];
+        int[] totalByLineage = new int[nLineages];
+        int[] rowsPerLineage = new int[nLineages];
+        for (int row = 0; row < size; row++) {
+            int lineage = lineageIndex.getSharedLineage(members[row]);
+            lineageByRow[row] = lineage;
+            if (lineage != -1) {
+                totalByLineage[lineage] += readCounts[row];
+                rowsPerLineage[lineage]++;
+            }
+        }
+
+        //group rows by lineage
+        int[] lineageStart = new int[nLineages + 1];
+        for (int lineage = 0; lineage < nLineages; lineage++) {
+            lineageStart[lineage + 1] = lineageStart[lineage] + rowsPerLineage[lineage];
+        }
+
+        int[] rowsByLineage = new int[lineageStart[nLineages]];
+        int[] nextPosition = Arrays.copyOf(lineageStart, nLineages);
+        for (int row = 0; row < size; row++) {
+            if (lineageByRow[row] != -1) {
+                rowsByLineage[nextPosition[lineageByRow[row]]++] = row;
+            }
+        }
+
+        //now filter by lineage
+        logger.info("total lineages being inspected: " + nLineages);
+        int sizeBefore = size;
+        int[] mergedInto = new int[size];
+        for (int row = 0; row < size; row++) {
+            mergedInto[row] = row;
+        }
+
+        int partitions = Math.max(1, Math.min(MAX_LINEAGE_PARTITIONS, nLineages));
+        int lineagesPerPartition = Math.max(1, (nLineages + partitions - 1) / partitions);
+        if (executor == null || partitions == 1) {
+            filterLineages(lineageIndex, 0, nLineages, lineageStart, rowsByLineage, totalByLineage, minPctForLineageFiltering, mergedInto);
+        }
+        else {
+            //each task only modifies the rows of its own lineages
+            List<Future<?>> futures = new ArrayList<>(partitions);
+            for (int start = 0; start < nLineages; start += lineagesPerPartition) {
+                final int first = start;
+                final int last = Math.min(nLineages, start + lineagesPerPartition);
+                futures.add(executor.submit(() -> filterLineages(lineageIndex, first, last, lineageStart, rowsByLineage, totalByLineage, minPctForLineageFiltering, mergedInto)));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GATKException(e.getMessage(), e);
+                }
+                catch (ExecutionException e) {
+                    throw new GATKException(e.getMessage(), e);
+                }
+            }
+        }
+
+        int[] newRowByOldRow = sortAndCollapse();
+        for (int row = 0; row < mergedInto.length; row++) {
+            mergedInto[row] = newRowByOldRow[mergedInto[row]];
+        }
+
+        messages.accept("Groups before/after filtering by lineage/allotype: " + sizeBefore + "/" + size);
+
+        return mergedInto;
+    }
+
+    private void filterLineages(LineageIndex lineageIndex, int firstLineage, int lastLineage, int[] lineageStart, int[] rowsByLineage, int[] totalByLineage, double minPctForLineageFiltering, int[] mergedInto) {
+        BitSet sharedAlleles = new BitSet();
+        BitSet rowAlleles = new BitSet();
+        for (int lineage = firstLineage; lineage < lastLineage; lineage++) {
+            if (lineageStart[lineage + 1] - lineageStart[lineage] < 2) {
+                continue;
+            }
+
+            boolean anyPassing = false;
+            int setsSkipped = 0;
+            for (int i = lineageStart[lineage]; i < lineageStart[lineage + 1]; i++) {
+                int row = rowsByLineage[i];
+                if (!passesLineagePct(row, totalByLineage[lineage], minPctForLineageFiltering)) {
+                    setsSkipped++;
+                    continue;
+                }
+
+                if (!anyPassing) {
+                    lineageIndex.toAlleleSet(members[row], sharedAlleles);
+                    anyPassing = true;
+                }
+                else {
+                    lineageIndex.toAlleleSet(members[row], rowAlleles);
+                    sharedAlleles.and(rowAlleles);
+                }
+
+                if (sharedAlleles.isEmpty()) {
+                    break;
+                }
+            }
+
+            logger.debug("total sets skipped due to pct: " + setsSkipped);
+            if (!anyPassing || sharedAlleles.isEmpty()) {
+                //if empty, there are no alleles common to all, so keep original data
+                continue;
+            }
+
+            //merge the passing rows into the first of them.  rows below the threshold are left as-is
+            int[] sharedRanks = lineageIndex.toRanks(lineage, sharedAlleles);
+            int target = -1;
+            for (int i = lineageStart[lineage]; i < lineageStart[lineage + 1]; i++) {
+                int row = rowsByLineage[i];
+                if (!passesLineagePct(row, totalByLineage[lineage], minPctForLineageFiltering)) {
+                    continue;
+                }
+
+                if (target == -1) {
+                    target = row;
+                    members[target] = sharedRanks;
+                }
+                else {
+                    readCounts[target] += readCounts[row];
+                    forward[target] += forward[row];
+                    reverse[target] += reverse[row];
+                    members[row] = null;
+                    mergedInto[row] = target;
+                }
+            }
+        }
+    }
+
+    private boolean passesLineagePct(int row, int totalForLineage, double minPctForLineageFiltering) {
+        return (double) readCounts[row] / (double) totalForLineage >= minPctForLineageFiltering;
+    }
+
+    /**
+     * Sorts rows by their references, merges rows with identical references and removes rows without any references.  This is done in place over the columns.
+     * @return The new row of each pre-existing row, or -1 if removed
+     */
+    public int[] sortAndCollapse() {
+        int[] origin = new int[size];
+        for (int row = 0; row < size; row++) {
+            origin[row] = row;
+        }
+
+        //heapsort, since this swaps rows in place without any additional storage
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i, size, origin);
+        }
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end, origin);
+            siftDown(0, end, origin);
+        }
+
+        int[] newRowByOldRow = new int[size];
+        int newSize = 0;
+        for (int row = 0; row < size; row++) {
+            if (members[row] == null) {
+                //removed rows sort last
+                newRowByOldRow[origin[row]] = -1;
+                continue;
+            }
+
+            if (newSize > 0 && Arrays.equals(members[newSize - 1], members[row])) {
+                readCounts[newSize - 1] += readCounts[row];
+                forward[newSize - 1] += forward[row];
+                reverse[newSize - 1] += reverse[row];
+            }
+            else {
+                members[newSize] = members[row];
+                readCounts[newSize] = readCounts[row];
+                forward[newSize] = forward[row];
+                reverse[newSize] = reverse[row];
+                newSize++;
+            }
+
+            newRowByOldRow[origin[row]] = newSize - 1;
+        }
+
+        Arrays.fill(members, newSize, size, null);
+        size = newSize;
+
+        return newRowByOldRow;
+    }
+
+    private void siftDown(int root, int end, int[] origin) {
+        while (2 * root + 1 < end) {
+            int child = 2 * root + 1;
+            if (child + 1 < end && compareRows(child, child + 1) < 0) {
+                child++;
+            }
+
+            if (compareRows(root, child) >= 0) {
+                return;
+            }
+
+            swap(root, child, origin);
+            root = child;
+        }
+    }
+
+    private int compareRows(int row1, int row2) {
+        int[] a = members[row1];
+        int[] b = members[row2];
+        if (a == null || b == null) {
+            return a == b ? 0 : (a == null ? 1 : -1);
+        }
+
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            if (a[i] != b[i]) {
+                return Integer.compare(a[i], b[i]);
+            }
+        }
+
+        return Integer.compare(a.length, b.length);
+    }
+
+    private void swap(int row1, int row2, int[] origin) {
+        int[] tmpMembers = members[row1];
+        members[row1] = members[row2];
+        members[row2] = tmpMembers;
+
+        swap(readCounts, row1, row2);
+        swap(forward, row1, row2);
+        swap(reverse, row1, row2);
+        swap(origin, row1, row2);
+    }
+
+    private static void swap(int[] values, int i, int j) {
+        int tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+}
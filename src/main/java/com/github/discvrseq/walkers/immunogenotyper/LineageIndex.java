@@ -0,0 +1,112 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns an integer ID to each lineage, and records the lineage of each reference of a {@link HitTable} by rank.  Within each lineage, the references
+ * are numbered by their position in that lineage, so a set of alleles from one lineage can be held as a small {@link BitSet}, and the alleles shared
+ * between sets found by AND-ing these.  This is built once per filtering pass, so the lineage map is not consulted per row.
+ */
+public class LineageIndex {
+    private final int[] lineageByRank;
+    private final int[] positionByRank;
+    private final int[][] ranksByLineage;
+
+    public LineageIndex(HitTable table, Map<String, String> nameToLineageMap) {
+        int nRefs = table.getReferenceCount();
+        lineageByRank = new int[nRefs];
+        positionByRank = new int[nRefs];
+
+        Map<String, Integer> lineageIds = new HashMap<>();
+        int[] allelesPerLineage = new int[nRefs];
+        for (int rank = 0; rank < nRefs; rank++) {
+            String lineage = nameToLineageMap.get(table.getRefName(rank));
+            if (lineage == null) {
+                lineageByRank[rank] = -1;
+                positionByRank[rank] = -1;
+                continue;
+            }
+
+            Integer id = lineageIds.get(lineage);
+            if (id == null) {
+                id = lineageIds.size();
+                lineageIds.put(lineage, id);
+            }
+
+            lineageByRank[rank] = id;
+            positionByRank[rank] = allelesPerLineage[id]++;
+        }
+
+        //ranks are visited in ascending order, so the ranks of each lineage are sorted
+        ranksByLineage = new int[lineageIds.size()][];
+        for (int lineage = 0; lineage < ranksByLineage.length; lineage++) {
+            ranksByLineage[lineage] = new int[allelesPerLineage[lineage]];
+        }
+        for (int rank = 0; rank < nRefs; rank++) {
+            if (lineageByRank[rank] != -1) {
+                ranksByLineage[lineageByRank[rank]][positionByRank[rank]] = rank;
+            }
+        }
+    }
+
+    public int getLineageCount() {
+        return ranksByLineage.length;
+    }
+
+    int getReferenceCount() {
+        return lineageByRank.length;
+    }
+
+    /**
+     * @return The ID of the lineage of this reference, or -1 if it has none
+     */
+    int getLineage(int rank) {
+        return lineageByRank[rank];
+    }
+
+    /**
+     * @return The ID of the single lineage shared by all of these references, or -1 if they span more than one lineage or any lacks a lineage
+     */
+    int getSharedLineage(int[] ranks) {
+        int lineage = lineageByRank[ranks[0]];
+        for (int rank : ranks) {
+            if (lineageByRank[rank] != lineage) {
+                return -1;
+            }
+        }
+
+        return lineage;
+    }
+
+    /**
+     * Sets the bits of the provided references, which must all belong to the same lineage, after clearing any existing bits.
+     */
+    void toAlleleSet(int[] ranks, BitSet alleles) {
+        alleles.clear();
+        for (int rank : ranks) {
+            alleles.set(positionByRank[rank]);
+        }
+    }
+
+    /**
+     * @return The ranks of the alleles of this lineage included in the provided set, in ascending order
+     */
+    int[] toRanks(int lineage, BitSet alleles) {
+        int[] ret = new int[alleles.cardinality()];
+        int i = 0;
+        for (int position = alleles.nextSetBit(0); position >= 0; position = alleles.nextSetBit(position + 1)) {
+            ret[i++] = ranksByLineage[lineage][position];
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return The number of alleles in this lineage, which is the size of its allele sets
+     */
+    int getAlleleCount(int lineage) {
+        return ranksByLineage[lineage].length;
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import htsjdk.samtools.util.IOUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes the progress of ImmunoGenotyper as JSON lines, one object per line, so long runs can be monitored and their memory use sized.
+ * Each line holds the read groups and alignments processed, their rate since the previous line, and the size and failure counters of the trackers.
+ */
+public class ProgressMetricsWriter implements Closeable {
+    private final PrintWriter writer;
+    private final long intervalNanos;
+    private final Gson gson = new Gson();
+
+    private final long startNanos;
+    private long lastNanos;
+    private long lastReadGroups = 0;
+
+    public ProgressMetricsWriter(File output, int intervalSeconds) {
+        IOUtil.assertFileIsWritable(output);
+        this.writer = new PrintWriter(IOUtil.openFileForBufferedWriting(output));
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        this.startNanos = System.nanoTime();
+        this.lastNanos = startNanos;
+    }
+
+    /**
+     * @return True if the interval has elapsed since the last line was written
+     */
+    public boolean isDue() {
+        return System.nanoTime() - lastNanos >= intervalNanos;
+    }
+
+    /**
+     * Writes one line describing the current state.
+     * @param phase The stage of the run, such as traversal
+     * @param alignments The number of alignments processed
+     * @param readGroups The number of read groups (all alignments of a read name) processed
+     * @param trackers The trackers holding the hits collected so far
+     */
+    public void write(String phase, long alignments, long readGroups, Collection<ReferenceMatchTracker> trackers) {
+        long now = System.nanoTime();
+        double elapsedSeconds = (now - startNanos) / 1e9;
+        double intervalSeconds = (now - lastNanos) / 1e9;
+
+        int hitSets = 0;
+        long trackerBytes = 0;
+        long readPairsWithHits = 0;
+        long readPairsNoHits = 0;
+        long failedForMapq = 0;
+        long failedForLength = 0;
+        long failedForValidPair = 0;
+        long failedForMismatch = 0;
+        for (ReferenceMatchTracker tracker : trackers) {
+            hitSets += tracker.getHitSetCount();
+            trackerBytes += tracker.estimateHeapBytes();
+            readPairsWithHits += tracker.getReadPairsWithHits();
+            readPairsNoHits += tracker.getReadPairsNoHits();
+            failedForMapq += tracker.getTotalReadsFailedForMapq();
+            failedForLength += tracker.getTotalReadsFailedForLength();
+            failedForValidPair += tracker.getTotalReadsFailedForValidPair();
+            failedForMismatch += tracker.getTotalAlignmentsFailedForMismatch();
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+
+        JsonObject json = new JsonObject();
+        json.addProperty("timestamp", System.currentTimeMillis());
+        json.addProperty("phase", phase);
+        json.addProperty("elapsedSeconds", round(elapsedSeconds));
+        json.addProperty("alignments", alignments);
+        json.addProperty("readGroups", readGroups);
+        json.addProperty("readGroupsPerSecond", round(intervalSeconds == 0 ? 0 : (readGroups - lastReadGroups) / intervalSeconds));
+        json.addProperty("alignmentsPerReadGroup", round(readGroups == 0 ? 0 : (double) alignments / readGroups));
+        json.addProperty("samples", trackers.size());
+        json.addProperty("hitSets", hitSets);
+        json.addProperty("estimatedTrackerBytes", trackerBytes);
+        json.addProperty("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory());
+        json.addProperty("heapMaxBytes", runtime.maxMemory());
+        json.addProperty("readPairsWithHits", readPairsWithHits);
+        json.addProperty("readPairsNoHits", readPairsNoHits);
+        json.addProperty("failedForMapq", failedForMapq);
+        json.addProperty("failedForLength", failedForLength);
+        json.addProperty("failedForValidPair", failedForValidPair);
+        json.addProperty("failedForMismatch", failedForMismatch);
+
+        writer.println(gson.toJson(json));
+        writer.flush();
+
+        lastNanos = now;
+        lastReadGroups = readGroups;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+}
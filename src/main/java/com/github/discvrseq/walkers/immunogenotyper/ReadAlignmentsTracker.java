@@ -0,0 +1,130 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import org.broadinstitute.hellbender.utils.read.GATKRead;
+
+/**
+ * Accumulates the alignments for a single read name (i.e. one read pair).  Only alignments with the fewest mismatches are used, so rather than binning every alignment by NM,
+ * this keeps a running minimum across both mates and only the contigs hit at that minimum.  An alignment with fewer mismatches discards those collected so far.
+ * Contigs are tracked by their index in the sequence dictionary.
+ */
+public class ReadAlignmentsTracker {
+    private final String activeReadName;
+    private final int minAlignmentLength;
+    private final int mismatchesTolerated;
+
+    //the lowest NM of any passing alignment, and the contigs of each mate hit with that NM
+    private int lowestNm = Integer.MAX_VALUE;
+    private final ContigIndexList forwardPerfectHits = new ContigIndexList();
+    private final ContigIndexList reversePerfectHits = new ContigIndexList();
+    private int lowMapqAlignments = 0;
+    private final ContigIndexList mismatchAlignments = new ContigIndexList();
+    private final ContigIndexList shortAlignments = new ContigIndexList();
+
+    public ReadAlignmentsTracker(String activeReadName, int minAlignmentLength, int mismatchesTolerated){
+        this.activeReadName = activeReadName;
+        this.minAlignmentLength = minAlignmentLength;
+        this.mismatchesTolerated = mismatchesTolerated;
+    }
+
+    public String getReadName() {
+        return activeReadName;
+    }
+
+    public void addAlignment(GATKRead record, int contigIndex, int nm) {
+        addAlignment(contigIndex, nm, record.getLength(), !record.isPaired() || record.isFirstOfPair(), record.isPaired() && record.isSecondOfPair());
+    }
+
+    /**
+     * @param isForward True if this is the first read of a pair, or an unpaired read
+     * @param isReverse True if this is the second read of a pair
+     */
+    public void addAlignment(int contigIndex, int nm, int length, boolean isForward, boolean isReverse) {
+        if (length < minAlignmentLength){
+            shortAlignments.add(contigIndex);
+        }
+        else if (nm > mismatchesTolerated){
+            mismatchAlignments.add(contigIndex);
+        }
+        else if (nm <= lowestNm) {
+            if (nm < lowestNm){
+                lowestNm = nm;
+                forwardPerfectHits.clear();
+                reversePerfectHits.clear();
+            }
+
+            if (isForward){
+                forwardPerfectHits.add(contigIndex);
+            }
+            else if (isReverse) {
+                reversePerfectHits.add(contigIndex);
+            }
+        }
+    }
+
+    public void addLowMapqAlignment() {
+        lowMapqAlignments++;
+    }
+
+    public int getLowMapqAlignments() {
+        return lowMapqAlignments;
+    }
+
+    /**
+     * @return The distinct contig indices of alignments discarded due to mismatches, in ascending order
+     */
+    public int[] getMismatchAlignments() {
+        return mismatchAlignments.toSortedArray();
+    }
+
+    public boolean hasMismatchAlignments() {
+        return !mismatchAlignments.isEmpty();
+    }
+
+    public boolean hasShortAlignments() {
+        return !shortAlignments.isEmpty();
+    }
+
+    public boolean hasPerfectHits() {
+        return lowestNm != Integer.MAX_VALUE;
+    }
+
+    public ReadHit getHits(boolean requireValidPair)
+    {
+        if (!hasPerfectHits()){
+            return new ReadHit();
+        }
+
+        int[] forward = forwardPerfectHits.toSortedArray();
+        int[] reverse = reversePerfectHits.toSortedArray();
+        ReadHit ret = new ReadHit();
+        if (requireValidPair){
+            ret.hits = ContigIndexList.intersect(forward, reverse);
+            ret.hasForward = true;
+            ret.hasReverse = true;
+        }
+        else {
+            ret.hits = ContigIndexList.union(forward, reverse);
+            ret.hasForward = forward.length > 0;
+            ret.hasReverse = reverse.length > 0;
+        }
+
+        return ret;
+    }
+
+    public static class ReadHit {
+        int[] hits = new int[0];
+        boolean hasForward;
+        boolean hasReverse;
+
+        /**
+         * @return The distinct contig indices hit by this read, in ascending order
+         */
+        public int[] getHits() {
+            return hits;
+        }
+
+        public boolean isEmpty() {
+            return hits.length == 0;
+        }
+    }
+}
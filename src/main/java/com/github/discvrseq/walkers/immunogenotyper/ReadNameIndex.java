@@ -0,0 +1,145 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import htsjdk.samtools.util.IOUtil;
+import org.apache.commons.lang.StringUtils;
+import org.broadinstitute.hellbender.exceptions.GATKException;
+import org.broadinstitute.hellbender.utils.io.IOUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Records the hit set assigned to each read name, which is only needed when per-read output is requested.  HitSets themselves only hold counts.
+ * Rather than holding names in memory, each read is spilled to a temp file as (hit set ID, read name).  The index also tracks how the filtering steps
+ * collapse hit sets, so each read can be resolved to its final group when the output is written.
+ *
+ * A buffered index holds entries in memory instead of spilling them. This is used by partial trackers, which are then appended to the main index in input order.
+ */
+public class ReadNameIndex implements Closeable {
+    private final File spillFile;
+    private final PrintWriter spillWriter;
+    private final List<BufferedEntry> buffer;
+
+    private final Map<HitKey, Integer> idByOriginalKey = new LinkedHashMap<>();
+    private int[] currentRowById = null;
+
+    private ReadNameIndex(boolean buffered) {
+        if (buffered) {
+            spillFile = null;
+            spillWriter = null;
+            buffer = new ArrayList<>();
+        }
+        else {
+            spillFile = IOUtils.createTempFile("immunoGenotyperReadNames", ".txt");
+            spillWriter = new PrintWriter(IOUtil.openFileForBufferedWriting(spillFile));
+            buffer = null;
+        }
+    }
+
+    public static ReadNameIndex createSpilling() {
+        return new ReadNameIndex(false);
+    }
+
+    public static ReadNameIndex createBuffered() {
+        return new ReadNameIndex(true);
+    }
+
+    public void add(HitKey key, String readName) {
+        if (buffer != null) {
+            buffer.add(new BufferedEntry(key, readName));
+            return;
+        }
+
+        Integer id = idByOriginalKey.get(key);
+        if (id == null) {
+            id = idByOriginalKey.size();
+            idByOriginalKey.put(key, id);
+        }
+
+        spillWriter.println(id + "\t" + readName);
+    }
+
+    /**
+     * Adds the entries of a buffered index to this one, preserving their order.
+     */
+    public void append(ReadNameIndex other) {
+        if (other.buffer == null) {
+            throw new IllegalArgumentException("Only a buffered index can be appended");
+        }
+
+        for (BufferedEntry entry : other.buffer) {
+            add(entry.key, entry.readName);
+        }
+    }
+
+    /**
+     * Called once traversal is complete, to convert the hit set of each read to its row in the {@link HitTable} used during filtering.
+     */
+    public void resolveRows(ToIntFunction<HitKey> rowFn) {
+        currentRowById = new int[idByOriginalKey.size()];
+        for (Map.Entry<HitKey, Integer> e : idByOriginalKey.entrySet()) {
+            currentRowById[e.getValue()] = rowFn.applyAsInt(e.getKey());
+        }
+    }
+
+    /**
+     * Updates the current row of each read after a filtering step.
+     * @param newRowByOldRow The row each pre-filter row was merged into, or -1 if it was discarded
+     */
+    public void remapRows(int[] newRowByOldRow) {
+        for (int i = 0; i < currentRowById.length; i++) {
+            currentRowById[i] = currentRowById[i] == -1 ? -1 : newRowByOldRow[currentRowById[i]];
+        }
+    }
+
+    /**
+     * Writes one line per read name, with the final hit set that read was assigned to.
+     * @param hitTable The final hit sets
+     * @param exportedRows The rows of the hit sets that passed the export thresholds
+     */
+    public void writeReadAssignments(File output, HitTable hitTable, Map<String, String> nameToLineageMap, BitSet exportedRows) {
+        spillWriter.close();
+
+        try (BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(spillFile); PrintWriter writer = new PrintWriter(IOUtil.openFileForBufferedWriting(output))) {
+            writer.println(StringUtils.join(Arrays.asList("ReadName", "RefNames", "Lineage/Allotypes", "Status"), "\t"));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int idx = line.indexOf('\t');
+                int row = currentRowById[Integer.parseInt(line.substring(0, idx))];
+                if (row == -1) {
+                    writer.println(StringUtils.join(Arrays.asList(line.substring(idx + 1), "", "", "FilteredByReference"), "\t"));
+                }
+                else {
+                    writer.println(StringUtils.join(Arrays.asList(
+                            line.substring(idx + 1),
+                            StringUtils.join(hitTable.getRefNames(row), ","),
+                            StringUtils.join(hitTable.getLineages(row, nameToLineageMap), ","),
+                            exportedRows.get(row) ? "Exported" : "BelowExportThreshold"
+                    ), "\t"));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new GATKException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (spillWriter != null) {
+            spillWriter.close();
+        }
+    }
+
+    private static final class BufferedEntry {
+        private final HitKey key;
+        private final String readName;
+
+        private BufferedEntry(HitKey key, String readName) {
+            this.key = key;
+            this.readName = readName;
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.github.discvrseq.walkers.immunogenotyper;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.broadinstitute.hellbender.exceptions.GATKException;
+import org.broadinstitute.hellbender.exceptions.UserException;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Aggregates the hits from each read pair into distinct sets of references, and contains the filters used to collapse ambiguous hit sets.
+ */
+public class ReferenceMatchTracker {
+    private static final Logger logger = LogManager.getLogger(ReferenceMatchTracker.class);
+
+    private static final int HIT_TABLE_MAGIC = 0x49474854;
+    private static final int HIT_TABLE_VERSION = 2;
+
+    private final SAMSequenceDictionary dictionary;
+    private final boolean requireValidPair;
+
+    //hit sets are accumulated by contig indices, and only converted to the table used for filtering once traversal is complete
+    private Map<HitKey, HitSet> hitsByKey = new LinkedHashMap<>();
+    private HitTable hitTable = null;
+    //sorted by reference name, so the output does not depend on the order reads were encountered
+    private final Map<String, AlignmentMismatch> mismatchMap = new TreeMap<>();
+    private int readPairsWithHits = 0;
+    private int readPairsNoHits = 0;
+    private int totalReadsFailedForMapq = 0;
+    private int totalReadsFailedForValidPair = 0;
+    private int totalReadsFailedForLength = 0;
+    private int totalAlignmentsFailedForMismatch = 0;
+
+    private ReadNameIndex readNameIndex = null;
+
+    //if the input was divided into shards by read name, the total number of shards and those included in this tracker
+    private int shardCount = 1;
+    private final BitSet shards = new BitSet();
+
+    public ReferenceMatchTracker(SAMSequenceDictionary dictionary, boolean requireValidPair){
+        this.dictionary = dictionary;
+        this.requireValidPair = requireValidPair;
+        shards.set(0);
+    }
+
+    /**
+     * Marks this tracker as containing only the reads of the given shard.
+     */
+    public void setShard(int shardIndex, int shardCount) {
+        this.shardCount = shardCount;
+        shards.clear();
+        shards.set(shardIndex);
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @return The indices of the shards included in this tracker
+     */
+    public BitSet getShards() {
+        return (BitSet) shards.clone();
+    }
+
+    /**
+     * If set, the hit set of each read name is recorded, allowing per-read output.
+     */
+    public void setReadNameIndex(ReadNameIndex readNameIndex) {
+        this.readNameIndex = readNameIndex;
+    }
+
+    public ReadNameIndex getReadNameIndex() {
+        return readNameIndex;
+    }
+
+    public SAMSequenceDictionary getSequenceDictionary() {
+        return dictionary;
+    }
+
+    public void addRead(ReadAlignmentsTracker tracker){
+        ReadAlignmentsTracker.ReadHit hit = tracker.getHits(requireValidPair);
+        if (!hit.isEmpty()){
+            readPairsWithHits++;
+
+            HitKey key = new HitKey(hit.hits);
+            HitSet hs = hitsByKey.get(key);
+            if (hs == null){
+                hs = new HitSet(hit.hits);
+                hitsByKey.put(key, hs);
+            }
+
+            hs.addRead(hit.hasForward, hit.hasReverse);
+            if (readNameIndex != null){
+                readNameIndex.add(key, tracker.getReadName());
+            }
+        }
+        else {
+            readPairsNoHits++;
+
+            if (tracker.getLowMapqAlignments() > 0){
+                totalReadsFailedForMapq++;
+            }
+
+            if (tracker.hasShortAlignments()){
+                totalReadsFailedForLength++;
+            }
+
+            if (tracker.hasMismatchAlignments()){
+                totalAlignmentsFailedForMismatch++;
+                for (int contigIdx : tracker.getMismatchAlignments()){
+                    addMismatch(contigIdx, "Mismatches");
+                }
+            }
+
+            if (requireValidPair && tracker.hasPerfectHits()){
+                totalReadsFailedForValidPair++;
+
+                ReadAlignmentsTracker.ReadHit hitNoValidPair = tracker.getHits(false);
+                for (int contigIdx : hitNoValidPair.hits){
+                    addMismatch(contigIdx, "NoValidPair");
+                }
+            }
+        }
+    }
+
+    private void addMismatch(int contigIdx, String reason){
+        String refName = dictionary.getSequence(contigIdx).getSequenceName();
+        AlignmentMismatch am = mismatchMap.get(refName);
+        if (am == null){
+            am = new AlignmentMismatch(refName);
+            mismatchMap.put(refName, am);
+        }
+
+        am.addRead(reason);
+    }
+
+    /**
+     * Merges the hits and counts from another tracker into this one.  Hit sets and mismatches not already present are added in the other tracker's iteration order,
+     * so merging partial trackers in the order their reads were encountered produces the same result as processing those reads with a single tracker.
+     */
+    public void merge(ReferenceMatchTracker other){
+        readPairsWithHits += other.readPairsWithHits;
+        readPairsNoHits += other.readPairsNoHits;
+        totalReadsFailedForMapq += other.totalReadsFailedForMapq;
+        totalReadsFailedForValidPair += other.totalReadsFailedForValidPair;
+        totalReadsFailedForLength += other.totalReadsFailedForLength;
+        totalAlignmentsFailedForMismatch += other.totalAlignmentsFailedForMismatch;
+
+        for (Map.Entry<HitKey, HitSet> e : other.hitsByKey.entrySet()){
+            if (hitsByKey.containsKey(e.getKey())){
+                hitsByKey.get(e.getKey()).append(e.getValue());
+            }
+            else {
+                hitsByKey.put(e.getKey(), e.getValue());
+            }
+        }
+
+        for (Map.Entry<String, AlignmentMismatch> e : other.mismatchMap.entrySet()){
+            if (mismatchMap.containsKey(e.getKey())){
+                mismatchMap.get(e.getKey()).append(e.getValue());
+            }
+            else {
+                mismatchMap.put(e.getKey(), e.getValue());
+            }
+        }
+
+        if (readNameIndex != null && other.readNameIndex != null){
+            readNameIndex.append(other.readNameIndex);
+        }
+
+        shards.or(other.shards);
+    }
+
+    /**
+     * @return The number of distinct hit sets currently held
+     */
+    public int getHitSetCount() {
+        return hitsByKey == null ? hitTable.size() : hitsByKey.size();
+    }
+
+    /**
+     * @return A rough estimate of the heap used by the hit sets and mismatches of this tracker, intended for monitoring rather than precise accounting.
+     * This iterates the hit sets, so should not be called per read.
+     */
+    public long estimateHeapBytes() {
+        //per hit set: the map entry and table slot, the key and the HitSet, which share one array of contig indices
+        long ret = 0;
+        if (hitsByKey != null) {
+            for (HitSet hs : hitsByKey.values()) {
+                ret += 104 + 4L * hs.getContigIndices().length;
+            }
+        }
+        else {
+            for (int row = 0; row < hitTable.size(); row++) {
+                ret += 32 + 4L * hitTable.getRanks(row).length;
+            }
+        }
+
+        ret += 128L * mismatchMap.size();
+
+        return ret;
+    }
+
+    /**
+     * @return The hit sets.  The first call converts the hits accumulated during traversal to this form, after which no further reads should be added.
+     */
+    public HitTable getHitTable() {
+        if (hitTable == null) {
+            hitTable = new HitTable(dictionary, hitsByKey.size());
+            Map<HitKey, Integer> rowByKey = readNameIndex == null ? null : new HashMap<>();
+            for (Map.Entry<HitKey, HitSet> e : hitsByKey.entrySet()) {
+                HitSet hs = e.getValue();
+                int row = hitTable.addRow(hs.getContigIndices(), hs.getReadCount(), hs.getForwardCount(), hs.getReverseCount());
+                if (rowByKey != null) {
+                    rowByKey.put(e.getKey(), row);
+                }
+            }
+            hitsByKey = null;
+
+            int[] newRowByOldRow = hitTable.sortAndCollapse();
+            if (readNameIndex != null) {
+                readNameIndex.resolveRows(key -> newRowByOldRow[rowByKey.get(key)]);
+            }
+        }
+
+        return hitTable;
+    }
+
+    /**
+     * Writes the hit sets, counts and mismatches of this tracker, prior to any filtering, to a compact binary file.  This can be loaded using {@link #readHitTable(File)},
+     * which allows the filtering and export steps to be repeated without the original alignments.  Read names are not included.
+     */
+    public void writeHitTable(File output) {
+        if (hitsByKey == null) {
+            throw new IllegalStateException("The hit table cannot be written once filtering has started");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(output))))) {
+            out.writeInt(HIT_TABLE_MAGIC);
+            out.writeInt(HIT_TABLE_VERSION);
+            out.writeBoolean(requireValidPair);
+            out.writeInt(shardCount);
+            out.writeInt(shards.cardinality());
+            for (int shard = shards.nextSetBit(0); shard >= 0; shard = shards.nextSetBit(shard + 1)) {
+                out.writeInt(shard);
+            }
+
+            out.writeInt(dictionary.size());
+            for (SAMSequenceRecord seq : dictionary.getSequences()) {
+                out.writeUTF(seq.getSequenceName());
+                out.writeInt(seq.getSequenceLength());
+            }
+
+            out.writeInt(readPairsWithHits);
+            out.writeInt(readPairsNoHits);
+            out.writeInt(totalReadsFailedForMapq);
+            out.writeInt(totalReadsFailedForValidPair);
+            out.writeInt(totalReadsFailedForLength);
+            out.writeInt(totalAlignmentsFailedForMismatch);
+
+            out.writeInt(hitsByKey.size());
+            for (HitSet hs : hitsByKey.values()) {
+                out.writeInt(hs.getContigIndices().length);
+                for (int contigIdx : hs.getContigIndices()) {
+                    out.writeInt(contigIdx);
+                }
+
+                out.writeInt(hs.getReadCount());
+                out.writeInt(hs.getForwardCount());
+                out.writeInt(hs.getReverseCount());
+            }
+
+            out.writeInt(mismatchMap.size());
+            for (AlignmentMismatch am : mismatchMap.values()) {
+                out.writeUTF(am.getRefName());
+                out.writeInt(am.getTotalReads());
+                out.writeInt(am.getReasonsForFailure().size());
+                for (String reason : am.getReasonsForFailure()) {
+                    out.writeUTF(reason);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new GATKException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Loads a tracker written using {@link #writeHitTable(File)}.
+     */
+    public static ReferenceMatchTracker readHitTable(File input) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(input))))) {
+            if (in.readInt() != HIT_TABLE_MAGIC) {
+                throw new UserException.BadInput("Not an ImmunoGenotyper hit table: " + input.getPath());
+            }
+
+            int version = in.readInt();
+            if (version < 1 || version > HIT_TABLE_VERSION) {
+                throw new UserException.BadInput("Unsupported hit table version " + version + ": " + input.getPath());
+            }
+
+            boolean requireValidPair = in.readBoolean();
+
+            //version 1 did not support shards
+            int shardCount = 1;
+            BitSet shards = new BitSet();
+            shards.set(0);
+            if (version >= 2) {
+                shardCount = in.readInt();
+                shards.clear();
+                int nShards = in.readInt();
+                for (int i = 0; i < nShards; i++) {
+                    shards.set(in.readInt());
+                }
+            }
+
+            int nContigs = in.readInt();
+            List<SAMSequenceRecord> sequences = new ArrayList<>(nContigs);
+            for (int i = 0; i < nContigs; i++) {
+                sequences.add(new SAMSequenceRecord(in.readUTF(), in.readInt()));
+            }
+
+            ReferenceMatchTracker ret = new ReferenceMatchTracker(new SAMSequenceDictionary(sequences), requireValidPair);
+            ret.shardCount = shardCount;
+            ret.shards.clear();
+            ret.shards.or(shards);
+            ret.readPairsWithHits = in.readInt();
+            ret.readPairsNoHits = in.readInt();
+            ret.totalReadsFailedForMapq = in.readInt();
+            ret.totalReadsFailedForValidPair = in.readInt();
+            ret.totalReadsFailedForLength = in.readInt();
+            ret.totalAlignmentsFailedForMismatch = in.readInt();
+
+            int nHitSets = in.readInt();
+            for (int i = 0; i < nHitSets; i++) {
+                int[] contigIndices = new int[in.readInt()];
+                for (int j = 0; j < contigIndices.length; j++) {
+                    contigIndices[j] = in.readInt();
+                }
+
+                HitSet hs = new HitSet(contigIndices);
+                hs.addReads(in.readInt(), in.readInt(), in.readInt());
+                ret.hitsByKey.put(new HitKey(contigIndices), hs);
+            }
+
+            int nMismatches = in.readInt();
+            for (int i = 0; i < nMismatches; i++) {
+                AlignmentMismatch am = new AlignmentMismatch(in.readUTF());
+                am.addReads(in.readInt());
+                int nReasons = in.readInt();
+                for (int j = 0; j < nReasons; j++) {
+                    am.getReasonsForFailure().add(in.readUTF());
+                }
+
+                ret.mismatchMap.put(am.getRefName(), am);
+            }
+
+            return ret;
+        }
+        catch (IOException e) {
+            throw new GATKException(e.getMessage(), e);
+        }
+    }
+
+    public boolean isRequireValidPair() {
+        return requireValidPair;
+    }
+
+    public Map<String, AlignmentMismatch> getMismatchMap() {
+        return mismatchMap;
+    }
+
+    public int getReadPairsWithHits() {
+        return readPairsWithHits;
+    }
+
+    public int getReadPairsNoHits() {
+        return readPairsNoHits;
+    }
+
+    public int getTotalReadsFailedForMapq() {
+        return totalReadsFailedForMapq;
+    }
+
+    public int getTotalReadsFailedForValidPair() {
+        return totalReadsFailedForValidPair;
+    }
+
+    public int getTotalReadsFailedForLength() {
+        return totalReadsFailedForLength;
+    }
+
+    public int getTotalAlignmentsFailedForMismatch() {
+        return totalAlignmentsFailedForMismatch;
+    }
+
+    public void filterByReference(Integer minReadCountForRef, Double minPctForRef, Consumer<String> messages){
+        int[] newRowByOldRow = getHitTable().filterByReference(minReadCountForRef, minPctForRef, messages);
+        if (readNameIndex != null){
+            readNameIndex.remapRows(newRowByOldRow);
+        }
+    }
+
+    /**
+     * @param executor If provided, lineages are filtered in parallel using this executor
+     */
+    public void filterByLineage(Map<String, String> nameToLineageMap, double minPctForLineageFiltering, Consumer<String> messages, ExecutorService executor){
+        if (nameToLineageMap.isEmpty()){
+            logger.info("no reference to lineage/allotype file provided, cannot perform filtering");
+            return;
+        }
+
+        HitTable table = getHitTable();
+        int[] newRowByOldRow = table.filterByLineage(new LineageIndex(table, nameToLineageMap), minPctForLineageFiltering, messages, executor);
+        if (readNameIndex != null){
+            readNameIndex.remapRows(newRowByOldRow);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.github.discvrseq.walkers.printreadscontaining;
+
+/**
+ * Finds the first occurrence of a literal sequence in a read allowing a maximum number of differences, using bit-parallel matching rather than an alternation of regular expressions.
+ * If only substitutions are allowed (Hamming distance), this uses the Wu-Manber extension of the shift-and algorithm, keeping one bit vector per number of mismatches.
+ * If insertions and deletions are also allowed (edit distance), this uses Myers' bit-vector algorithm to find where a match ends, and then a small alignment over that window to find where it starts.
+ * In both cases the state is held in a single long, so sequences are limited to {@link #MAX_LENGTH} bases.  Optionally the reverse complement of the sequence is also searched.
+ *
+ * Instances are immutable, and can be shared between threads.
+ */
+public class ApproximateMatcher {
+    public static final int MAX_LENGTH = 64;
+
+    private final int maxDistance;
+    private final boolean allowIndels;
+
+    private final char[] forward;
+    private final long[] forwardMasks;
+
+    //null unless the reverse complement is searched, and differs from the sequence
+    private final char[] reverse;
+    private final long[] reverseMasks;
+
+    /**
+     * @param sequence The literal sequence, which must satisfy {@link LiteralMatcher#isLiteral(String)}
+     * @param maxDistance The maximum number of differences tolerated
+     * @param allowIndels If true, insertions and deletions count as differences (edit distance), otherwise only substitutions (Hamming distance)
+     * @param includeReverseComplement If true, the reverse complement of the sequence is also searched
+     */
+    public ApproximateMatcher(String sequence, int maxDistance, boolean allowIndels, boolean includeReverseComplement) {
+        if (sequence.isEmpty() || sequence.length() > MAX_LENGTH) {
+            throw new IllegalArgumentException("Sequence length must be between 1 and " + MAX_LENGTH + ": " + sequence);
+        }
+
+        this.maxDistance = maxDistance;
+        this.allowIndels = allowIndels;
+
+        forward = sequence.toCharArray();
+        forwardMasks = toMasks(forward);
+
+        String rc = includeReverseComplement ? reverseComplement(sequence) : null;
+        if (rc == null || rc.equals(sequence)) {
+            reverse = null;
+            reverseMasks = null;
+        }
+        else {
+            reverse = rc.toCharArray();
+            reverseMasks = toMasks(reverse);
+        }
+    }
+
+    /**
+     * @return The reverse complement of a DNA sequence.  IUPAC ambiguity codes are complemented, and any other character is left as-is.  Case is preserved.
+     */
+    public static String reverseComplement(String sequence) {
+        StringBuilder sb = new StringBuilder(sequence.length());
+        for (int i = sequence.length() - 1; i >= 0; i--) {
+            sb.append(complement(sequence.charAt(i)));
+        }
+
+        return sb.toString();
+    }
+
+    private static char complement(char base) {
+        switch (base) {
+            case 'A': return 'T';
+            case 'T': return 'A';
+            case 'C': return 'G';
+            case 'G': return 'C';
+            case 'R': return 'Y';
+            case 'Y': return 'R';
+            case 'K': return 'M';
+            case 'M': return 'K';
+            case 'B': return 'V';
+            case 'V': return 'B';
+            case 'D': return 'H';
+            case 'H': return 'D';
+            case 'a': return 't';
+            case 't': return 'a';
+            case 'c': return 'g';
+            case 'g': return 'c';
+            case 'r': return 'y';
+            case 'y': return 'r';
+            case 'k': return 'm';
+            case 'm': return 'k';
+            case 'b': return 'v';
+            case 'v': return 'b';
+            case 'd': return 'h';
+            case 'h': return 'd';
+            default: return base;
+        }
+    }
+
+    //bit i of the mask for a character is set if position i of the sequence is that character
+    private static long[] toMasks(char[] sequence) {
+        long[] ret = new long[128];
+        for (int i = 0; i < sequence.length; i++) {
+            ret[sequence[i]] |= 1L << i;
+        }
+
+        return ret;
+    }
+
+    private static long getMask(long[] masks, char c) {
+        return c < 128 ? masks[c] : 0L;
+    }
+
+    /**
+     * Finds the first match in either orientation, which is the one ending first.  If both orientations end at the same position, the forward match is used.
+     * @param startEnd Populated with the start (inclusive) and end (exclusive) of the match, if found
+     * @return True if a match was found
+     */
+    public boolean find(CharSequence read, int[] startEnd) {
+        int end = findEnd(read, forward, forwardMasks);
+        char[] matched = forward;
+        if (reverse != null) {
+            int reverseEnd = findEnd(read, reverse, reverseMasks);
+            if (reverseEnd != -1 && (end == -1 || reverseEnd < end)) {
+                end = reverseEnd;
+                matched = reverse;
+            }
+        }
+
+        if (end == -1) {
+            return false;
+        }
+
+        startEnd[0] = allowIndels ? findStart(read, matched, end) : end - matched.length;
+        startEnd[1] = end;
+
+        return true;
+    }
+
+    /**
+     * @return The end (exclusive) of the first match, or -1 if there is none
+     */
+    private int findEnd(CharSequence read, char[] sequence, long[] masks) {
+        return allowIndels ? findEndEdit(read, sequence.length, masks) : findEndHamming(read, sequence.length, masks);
+    }
+
+    private int findEndHamming(CharSequence read, int length, long[] masks) {
+        //bit i of state[d] is set if the first i+1 bases of the sequence end at this position with at most d mismatches
+        long[] state = new long[maxDistance + 1];
+        long matchBit = 1L << (length - 1);
+        for (int i = 0; i < read.length(); i++) {
+            long mask = getMask(masks, read.charAt(i));
+
+            long previous = state[0];
+            state[0] = ((state[0] << 1) | 1L) & mask;
+            for (int d = 1; d <= maxDistance; d++) {
+                long current = state[d];
+                state[d] = (((current << 1) | 1L) & mask) | ((previous << 1) | 1L);
+                previous = current;
+            }
+
+            if ((state[maxDistance] & matchBit) != 0 && i + 1 >= length) {
+                return i + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    private int findEndEdit(CharSequence read, int length, long[] masks) {
+        //Myers (1999): vertical deltas of the last column, as positive and negative bit vectors, and the distance in the last row
+        long pv = length == 64 ? -1L : (1L << length) - 1;
+        long mv = 0L;
+        int score = length;
+        long highBit = 1L << (length - 1);
+        for (int i = 0; i < read.length(); i++) {
+            long eq = getMask(masks, read.charAt(i));
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if ((ph & highBit) != 0) {
+                score++;
+            }
+            else if ((mh & highBit) != 0) {
+                score--;
+            }
+
+            ph <<= 1;
+            mh <<= 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+
+            if (score <= maxDistance) {
+                return i + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Aligns the sequence to the read ending at the provided position, and returns the start giving the fewest differences.  If several starts give the same number, the earliest is used.
+     */
+    private int findStart(CharSequence read, char[] sequence, int end) {
+        //align the reversed sequence against the read running backwards from the end, so the end is anchored and the start is free
+        int window = Math.min(end, sequence.length + maxDistance);
+        int[] previous = new int[sequence.length + 1];
+        int[] current = new int[sequence.length + 1];
+        for (int i = 0; i <= sequence.length; i++) {
+            previous[i] = i;
+        }
+
+        int bestStart = end - sequence.length;
+        int bestDistance = Integer.MAX_VALUE;
+        if (previous[sequence.length] <= maxDistance) {
+            bestDistance = previous[sequence.length];
+            bestStart = end;
+        }
+
+        for (int j = 1; j <= window; j++) {
+            char c = read.charAt(end - j);
+            current[0] = j;
+            for (int i = 1; i <= sequence.length; i++) {
+                int cost = sequence[sequence.length - i] == c ? 0 : 1;
+                current[i] = Math.min(previous[i - 1] + cost, Math.min(previous[i] + 1, current[i - 1] + 1));
+            }
+
+            if (current[sequence.length] <= bestDistance) {
+                bestDistance = current[sequence.length];
+                bestStart = end - j;
+            }
+
+            int[] tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+
+        return bestStart;
+    }
+}
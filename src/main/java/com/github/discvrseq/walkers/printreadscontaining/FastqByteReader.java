@@ -0,0 +1,201 @@
+package com.github.discvrseq.walkers.printreadscontaining;
+
+import com.github.discvrseq.util.ParallelDecompressingInputStream;
+import org.broadinstitute.hellbender.exceptions.GATKException;
+import org.broadinstitute.hellbender.exceptions.UserException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses FASTQ records directly from the decompressed bytes of a file, rather than decoding each line to a String as htsjdk's FastqReader does.
+ * Input is read into large chunks, and each record is a view over the chunk holding it (see {@link FastqByteRecord}).  A chunk is never overwritten,
+ * so records remain valid after later records are read, and can be handed to other threads.  A record that spans the end of a chunk is copied to the start of the next.
+ * Blank lines between records are skipped.
+ */
+public class FastqByteReader implements Closeable {
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final File file;
+    private final InputStream in;
+
+    private byte[] chunk = new byte[0];
+    private int recordStart = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private long recordsRead = 0;
+    private final long maxRecords;
+
+    private FastqByteRecord next;
+
+    /**
+     * @param decompressionThreads The number of threads used to inflate the file, if BGZF compressed.  See {@link ParallelDecompressingInputStream}.
+     */
+    public FastqByteReader(File file, int decompressionThreads) {
+        this(ParallelDecompressingInputStream.open(file, decompressionThreads), file, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads part of a file, such as one shard given by a {@link FastqIndex}.
+     * @param offset The offset of the first record, see {@link ParallelDecompressingInputStream#open(File, int, long)}
+     * @param maxRecords The number of records to read, after which the rest of the file is ignored
+     */
+    public FastqByteReader(File file, int decompressionThreads, long offset, long maxRecords) {
+        this(ParallelDecompressingInputStream.open(file, decompressionThreads, offset), file, maxRecords);
+    }
+
+    /**
+     * @param in The decompressed FASTQ data
+     * @param file The source of this data, used in error messages
+     */
+    public FastqByteReader(InputStream in, File file) {
+        this(in, file, Long.MAX_VALUE);
+    }
+
+    private FastqByteReader(InputStream in, File file, long maxRecords) {
+        this.file = file;
+        this.in = in;
+        this.maxRecords = maxRecords;
+        this.next = readRecord();
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    public FastqByteRecord next() {
+        if (next == null) {
+            throw new IllegalStateException("No more records in file: " + file.getPath());
+        }
+
+        FastqByteRecord ret = next;
+        next = readRecord();
+
+        return ret;
+    }
+
+    private FastqByteRecord readRecord() {
+        if (recordsRead == maxRecords) {
+            return null;
+        }
+
+        //skip blank lines.  positions within the record are relative to recordStart, since reading more data can move the record
+        int headerEnd;
+        while (true) {
+            headerEnd = findLineEnd(0);
+            if (headerEnd == -1) {
+                return null;
+            }
+
+            if (trimCarriageReturn(0, headerEnd) > 0) {
+                break;
+            }
+
+            recordStart = Math.min(recordStart + headerEnd + 1, limit);
+        }
+
+        long recordNumber = recordsRead + 1;
+        if (chunk[recordStart] != '@') {
+            throw new UserException.MalformedFile(file.toPath(), "Sequence header must start with @, record " + recordNumber);
+        }
+
+        int basesStart = headerEnd + 1;
+        int basesEnd = findLineEnd(basesStart);
+        int qualityHeaderStart = basesEnd + 1;
+        int qualityHeaderEnd = basesEnd == -1 ? -1 : findLineEnd(qualityHeaderStart);
+        int qualityStart = qualityHeaderEnd + 1;
+        int qualityEnd = qualityHeaderEnd == -1 ? -1 : findLineEnd(qualityStart);
+        if (qualityEnd == -1) {
+            throw new UserException.MalformedFile(file.toPath(), "Truncated FASTQ record " + recordNumber);
+        }
+
+        if (chunk[recordStart + qualityHeaderStart] != '+') {
+            throw new UserException.MalformedFile(file.toPath(), "Quality header must start with +, record " + recordNumber);
+        }
+
+        headerEnd = trimCarriageReturn(0, headerEnd);
+        basesEnd = trimCarriageReturn(basesStart, basesEnd);
+        if (basesEnd - basesStart != trimCarriageReturn(qualityStart, qualityEnd) - qualityStart) {
+            throw new UserException.MalformedFile(file.toPath(), "Sequence and quality line must be the same length, record " + recordNumber);
+        }
+
+        boolean hasTrailingNewline = recordStart + qualityEnd < limit;
+        int end = hasTrailingNewline ? qualityEnd + 1 : qualityEnd;
+
+        FastqByteRecord ret = new FastqByteRecord(chunk, recordStart, recordStart + headerEnd, recordStart + basesStart, recordStart + basesEnd, recordStart + end, hasTrailingNewline);
+        recordStart += end;
+        recordsRead++;
+
+        return ret;
+    }
+
+    /**
+     * @return The end of the line beginning at this position (exclusive, and excluding the newline), relative to the record start.  If the data ends without a newline, this is the end of the data.
+     * Returns -1 if there is no data at this position.
+     */
+    private int findLineEnd(int lineStart) {
+        int pos = lineStart;
+        while (true) {
+            for (; recordStart + pos < limit; pos++) {
+                if (chunk[recordStart + pos] == '\n') {
+                    return pos;
+                }
+            }
+
+            if (!fill()) {
+                return recordStart + lineStart < limit ? limit - recordStart : -1;
+            }
+        }
+    }
+
+    private int trimCarriageReturn(int lineStart, int lineEnd) {
+        return lineEnd > lineStart && chunk[recordStart + lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    /**
+     * Reads more data into a new chunk, beginning with the bytes of the current record.
+     * @return False if the end of the input has been reached
+     */
+    private boolean fill() {
+        if (eof) {
+            return false;
+        }
+
+        int carried = limit - recordStart;
+        byte[] newChunk = new byte[Math.max(CHUNK_SIZE, carried * 2)];
+        System.arraycopy(chunk, recordStart, newChunk, 0, carried);
+        chunk = newChunk;
+        recordStart = 0;
+        limit = carried;
+
+        //decompressing streams return small reads, so fill the chunk to avoid allocating one per read
+        try {
+            while (limit < chunk.length) {
+                int n = in.read(chunk, limit, chunk.length - limit);
+                if (n == -1) {
+                    eof = true;
+                    break;
+                }
+
+                limit += n;
+            }
+        }
+        catch (IOException e) {
+            throw new GATKException("Error reading file: " + file.getPath(), e);
+        }
+
+        return limit > carried;
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        }
+        catch (IOException e) {
+            throw new GATKException("Error closing file: " + file.getPath(), e);
+        }
+    }
+}
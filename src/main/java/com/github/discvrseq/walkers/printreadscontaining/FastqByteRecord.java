@@ -0,0 +1,110 @@
+package com.github.discvrseq.walkers.printreadscontaining;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A FASTQ record held as a view over the bytes it was parsed from, rather than as Strings.  The bases can be searched through {@link #getReadBases()} without copying,
+ * and the record can be written out as its original bytes.  The read name is only decoded if requested.  See {@link FastqByteReader}.
+ */
+public final class FastqByteRecord {
+    private final byte[] buffer;
+    private final int start;
+    private final int headerEnd;
+    private final int basesStart;
+    private final int basesEnd;
+    private final int end;
+    private final boolean hasTrailingNewline;
+
+    FastqByteRecord(byte[] buffer, int start, int headerEnd, int basesStart, int basesEnd, int end, boolean hasTrailingNewline) {
+        this.buffer = buffer;
+        this.start = start;
+        this.headerEnd = headerEnd;
+        this.basesStart = basesStart;
+        this.basesEnd = basesEnd;
+        this.end = end;
+        this.hasTrailingNewline = hasTrailingNewline;
+    }
+
+    /**
+     * @return The header line, without the leading '@'.  This matches htsjdk's FastqRecord.getReadName().
+     */
+    public String getReadName() {
+        return new String(buffer, start + 1, headerEnd - start - 1, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return A view of the bases, which is valid for the life of this record
+     */
+    public CharSequence getReadBases() {
+        return new ByteSequence(buffer, basesStart, basesEnd - basesStart);
+    }
+
+    public int getReadLength() {
+        return basesEnd - basesStart;
+    }
+
+    /**
+     * @return A record holding its own copy of these bytes, so the larger buffer this was read from is not retained
+     */
+    public FastqByteRecord copy() {
+        byte[] copy = Arrays.copyOfRange(buffer, start, end);
+
+        return new FastqByteRecord(copy, 0, headerEnd - start, basesStart - start, basesEnd - start, end - start, hasTrailingNewline);
+    }
+
+    /**
+     * Writes the record exactly as it was read, adding a newline if it was the last line of the input and lacked one.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, start, end - start);
+        if (!hasTrailingNewline) {
+            out.write('\n');
+        }
+    }
+
+    /**
+     * A CharSequence over ASCII bytes, so these can be passed to regular expressions and the other matchers without decoding.
+     */
+    private static final class ByteSequence implements CharSequence {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        ByteSequence(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+            }
+
+            return (char) (bytes[offset + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int startIdx, int endIdx) {
+            if (startIdx < 0 || endIdx > length || startIdx > endIdx) {
+                throw new IndexOutOfBoundsException("start: " + startIdx + ", end: " + endIdx + ", length: " + length);
+            }
+
+            return new ByteSequence(bytes, offset + startIdx, endIdx - startIdx);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.github.discvrseq.walkers.printreadscontaining;
+
+import com.github.discvrseq.util.ParallelDecompressingInputStream;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import org.broadinstitute.hellbender.exceptions.GATKException;
+import org.broadinstitute.hellbender.exceptions.UserException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A companion index for a FASTQ file, holding the offset of the start of every Nth record.  For BGZF files these are virtual file pointers, and for uncompressed files byte offsets,
+ * so reading can begin at any indexed record (see {@link ParallelDecompressingInputStream#open(File, int, long)}).  Other gzip files cannot be indexed, since they cannot be read from an offset.
+ * This allows a FASTQ, or both FASTQs of a pair in lockstep, to be divided into shards processed by separate jobs (see {@link #getShard(int, int)}).
+ *
+ * The index is written alongside the FASTQ (see {@link #getIndexFile(File)}), and records the length of the FASTQ so an index made before the file was replaced is rejected.
+ */
+public class FastqIndex {
+    private static final int INDEX_MAGIC = 0x46515849;
+    private static final int INDEX_VERSION = 1;
+
+    public static final String INDEX_EXTENSION = ".fqi";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final boolean blockCompressed;
+    private final long fileLength;
+    private final int recordsPerEntry;
+    private final long recordCount;
+    private final long[] offsets;
+
+    /**
+     * A contiguous range of records, and the offset of the first.
+     */
+    public static class Shard {
+        private final long offset;
+        private final long firstRecord;
+        private final long recordCount;
+
+        private Shard(long offset, long firstRecord, long recordCount) {
+            this.offset = offset;
+            this.firstRecord = firstRecord;
+            this.recordCount = recordCount;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The zero-based index of the first record of this shard
+         */
+        public long getFirstRecord() {
+            return firstRecord;
+        }
+
+        public long getRecordCount() {
+            return recordCount;
+        }
+    }
+
+    private FastqIndex(boolean blockCompressed, long fileLength, int recordsPerEntry, long recordCount, long[] offsets) {
+        this.blockCompressed = blockCompressed;
+        this.fileLength = fileLength;
+        this.recordsPerEntry = recordsPerEntry;
+        this.recordCount = recordCount;
+        this.offsets = offsets;
+    }
+
+    public static File getIndexFile(File fastq) {
+        return new File(fastq.getPath() + INDEX_EXTENSION);
+    }
+
+    public int getRecordsPerEntry() {
+        return recordsPerEntry;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Divides the indexed entries evenly between shards, so every shard begins at an indexed record.  If there are fewer entries than shards, some shards are empty.
+     * @param shardIndex The zero-based index of the shard, less than shardCount
+     */
+    public Shard getShard(int shardIndex, int shardCount) {
+        int firstEntry = (int) ((long) offsets.length * shardIndex / shardCount);
+        int endEntry = (int) ((long) offsets.length * (shardIndex + 1) / shardCount);
+        if (firstEntry == endEntry) {
+            return new Shard(0, Math.min((long) firstEntry * recordsPerEntry, recordCount), 0);
+        }
+
+        long firstRecord = (long) firstEntry * recordsPerEntry;
+        long endRecord = endEntry == offsets.length ? recordCount : (long) endEntry * recordsPerEntry;
+
+        return new Shard(offsets[firstEntry], firstRecord, endRecord - firstRecord);
+    }
+
+    /**
+     * Reads the FASTQ, recording the offset of every Nth record.  Records are found by counting lines, in the same way as {@link FastqByteReader}: blank lines are skipped between records, and each record is four lines.
+     * @param recordsPerEntry The number of records between indexed offsets, which is also the granularity of shards
+     * @param decompressionThreads The number of threads used to inflate the file, if BGZF compressed
+     */
+    public static FastqIndex build(File fastq, int recordsPerEntry, int decompressionThreads) {
+        long[] offsets = new long[1024];
+        int entryCount = 0;
+        long recordCount = 0;
+        boolean blockCompressed;
+
+        try (InputStream in = ParallelDecompressingInputStream.open(fastq, decompressionThreads)) {
+            ParallelDecompressingInputStream compressed = in instanceof ParallelDecompressingInputStream ? (ParallelDecompressingInputStream) in : null;
+            if (compressed != null && !compressed.isBlockCompressed()) {
+                throw new UserException.BadInput("Only BGZF or uncompressed FASTQs can be indexed, which is not the case for: " + fastq.getPath() + ".  A gzipped FASTQ can be converted to BGZF using bgzip.");
+            }
+            blockCompressed = compressed != null;
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            long lineStart = 0;
+            int lineLength = 0;
+            boolean lineIsBlank = true;
+            int lineInRecord = 0;
+            boolean eof = false;
+            while (!eof) {
+                //for BGZF, a read never spans blocks, so the offset of each byte is relative to the pointer of the first
+                long bufferStart = blockCompressed ? compressed.getVirtualFilePointer() : position;
+                int n = in.read(buffer, 0, buffer.length);
+                eof = n == -1;
+                for (int i = 0; i < (eof ? 1 : n); i++) {
+                    if (!eof && lineLength == 0) {
+                        lineStart = blockCompressed ? BlockCompressedFilePointerUtil.makeFilePointer(BlockCompressedFilePointerUtil.getBlockAddress(bufferStart), BlockCompressedFilePointerUtil.getBlockOffset(bufferStart) + i) : bufferStart + i;
+                    }
+
+                    //the last line may lack a newline
+                    boolean lineEnd = eof ? lineLength > 0 : buffer[i] == '\n';
+                    if (!lineEnd) {
+                        if (!eof) {
+                            lineLength++;
+                            if (buffer[i] != '\r') {
+                                lineIsBlank = false;
+                            }
+                        }
+
+                        continue;
+                    }
+
+                    //blank lines are only skipped between records
+                    if (lineInRecord > 0 || !lineIsBlank) {
+                        if (lineInRecord == 0) {
+                            if (recordCount % recordsPerEntry == 0) {
+                                if (entryCount == offsets.length) {
+                                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                                }
+
+                                offsets[entryCount++] = lineStart;
+                            }
+
+                            recordCount++;
+                        }
+
+                        lineInRecord = (lineInRecord + 1) % 4;
+                    }
+
+                    lineLength = 0;
+                    lineIsBlank = true;
+                }
+
+                if (!eof) {
+                    position += n;
+                }
+            }
+
+            if (lineInRecord != 0) {
+                throw new UserException.MalformedFile(fastq.toPath(), "Truncated FASTQ record " + recordCount);
+            }
+        }
+        catch (IOException e) {
+            throw new GATKException("Error reading file: " + fastq.getPath(), e);
+        }
+
+        return new FastqIndex(blockCompressed, fastq.length(), recordsPerEntry, recordCount, Arrays.copyOf(offsets, entryCount));
+    }
+
+    public void write(File output) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(output))))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeBoolean(blockCompressed);
+            out.writeLong(fileLength);
+            out.writeInt(recordsPerEntry);
+            out.writeLong(recordCount);
+            out.writeInt(offsets.length);
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+        }
+        catch (IOException e) {
+            throw new GATKException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Loads the index of this FASTQ, written using {@link #write(File)} to the location given by {@link #getIndexFile(File)}.
+     */
+    public static FastqIndex readIndex(File fastq) {
+        File input = getIndexFile(fastq);
+        if (!input.exists()) {
+            throw new UserException.BadInput("FASTQ index not found: " + input.getPath() + ".  This can be created using IndexFastq.");
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(input))))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new UserException.BadInput("Not a FASTQ index: " + input.getPath());
+            }
+
+            int version = in.readInt();
+            if (version < 1 || version > INDEX_VERSION) {
+                throw new UserException.BadInput("Unsupported FASTQ index version " + version + ": " + input.getPath());
+            }
+
+            boolean blockCompressed = in.readBoolean();
+            long fileLength = in.readLong();
+            if (fileLength != fastq.length()) {
+                throw new UserException.BadInput("The FASTQ index does not match the length of the FASTQ, and may have been made before the file was replaced: " + input.getPath());
+            }
+
+            int recordsPerEntry = in.readInt();
+            long recordCount = in.readLong();
+            long[] offsets = new long[in.readInt()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readLong();
+            }
+
+            return new FastqIndex(blockCompressed, fileLength, recordsPerEntry, recordCount, offsets);
+        }
+        catch (IOException e) {
+            throw new GATKException(e.getMessage(), e);
+        }
+    }
+}
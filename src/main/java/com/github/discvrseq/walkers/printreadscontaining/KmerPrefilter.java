@@ -0,0 +1,186 @@
+package com.github.discvrseq.walkers.printreadscontaining;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A quick test of whether a read pair could match any expression, so the full matchers only run on candidates.  Each expression is reduced to a set of sequences,
+ * at least one of which must occur exactly in a read for the expression to match.  One k-mer of each sequence is hashed into a bitset, and each read is scanned once using a rolling hash.
+ * A read with no k-mer in the bitset cannot match, while one with a hit is a candidate, since unrelated k-mers can share a bit.  Reads are never wrongly rejected.
+ *
+ * Expressions are reduced as follows (see {@link #getRequiredSequences(String, int, boolean)}):
+ * <ul>
+ *     <li>A literal sequence requires itself, or its reverse complement if this is also searched</li>
+ *     <li>A literal sequence matched allowing up to d differences is split into d + 1 pieces.  Each difference changes at most one piece, so at least one piece occurs exactly.</li>
+ *     <li>A literal sequence anchored with ^ or $ requires the sequence</li>
+ *     <li>Any other regular expression cannot be reduced, in which case no prefilter is used</li>
+ * </ul>
+ *
+ * Instances are immutable once built, and can be shared between threads.
+ */
+public class KmerPrefilter {
+    public static final int MIN_K = 8;
+    public static final int MAX_K = 16;
+
+    //roughly one bit set per 4096, so a read of 150 bases has a few percent chance of a spurious hit
+    private static final int BITS_PER_KMER = 4096;
+    private static final int MIN_BITS = 1 << 16;
+    private static final int MAX_BITS = 1 << 26;
+
+    private static final long HASH_BASE = 31;
+    private static final long HASH_MIX = 0x9E3779B97F4A7C15L;
+
+    private final int k;
+    private final long removeFactor;
+    private final int shift;
+
+    //null if no expression is tested against that read
+    private final long[] read1Bits;
+    private final long[] read2Bits;
+
+    /**
+     * @return The sequences at least one of which must occur in a read for this expression to match, or null if the expression is a regular expression that cannot be reduced
+     * @param maxDistance The maximum number of differences tolerated when matching literal sequences
+     * @param includeReverseComplement True if literal sequences also match their reverse complement
+     */
+    @Nullable
+    public static List<String> getRequiredSequences(String expression, int maxDistance, boolean includeReverseComplement) {
+        List<String> ret = new ArrayList<>();
+        if (LiteralMatcher.isLiteral(expression)) {
+            //split into maxDistance + 1 pieces, of which at least one must match exactly
+            int pieces = maxDistance + 1;
+            for (int i = 0; i < pieces; i++) {
+                String piece = expression.substring(expression.length() * i / pieces, expression.length() * (i + 1) / pieces);
+                ret.add(piece);
+                if (includeReverseComplement) {
+                    ret.add(ApproximateMatcher.reverseComplement(piece));
+                }
+            }
+
+            return ret;
+        }
+
+        //regular expressions are matched exactly as written
+        String trimmed = expression;
+        if (trimmed.startsWith("^")) {
+            trimmed = trimmed.substring(1);
+        }
+
+        if (trimmed.endsWith("$")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+
+        if (LiteralMatcher.isLiteral(trimmed)) {
+            ret.add(trimmed);
+
+            return ret;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return A prefilter for these sequences, or null if the shortest is shorter than {@link #MIN_K}, in which case too many reads would be candidates for this to help
+     * @param read1Sequences The sequences required by the expressions tested against the first read, such as from {@link #getRequiredSequences(String, int, boolean)}
+     * @param read2Sequences The sequences required by the expressions tested against the second read
+     */
+    @Nullable
+    public static KmerPrefilter create(Collection<String> read1Sequences, Collection<String> read2Sequences) {
+        int k = MAX_K;
+        for (String seq : read1Sequences) {
+            k = Math.min(k, seq.length());
+        }
+
+        for (String seq : read2Sequences) {
+            k = Math.min(k, seq.length());
+        }
+
+        if (k < MIN_K) {
+            return null;
+        }
+
+        return new KmerPrefilter(read1Sequences, read2Sequences, k);
+    }
+
+    private KmerPrefilter(Collection<String> read1Sequences, Collection<String> read2Sequences, int k) {
+        this.k = k;
+
+        long factor = 1;
+        for (int i = 0; i < k; i++) {
+            factor *= HASH_BASE;
+        }
+        this.removeFactor = factor;
+
+        long targetBits = (long) Math.max(read1Sequences.size(), read2Sequences.size()) * BITS_PER_KMER;
+        int bits = MIN_BITS;
+        while (bits < targetBits && bits < MAX_BITS) {
+            bits <<= 1;
+        }
+        this.shift = 64 - Integer.numberOfTrailingZeros(bits);
+
+        this.read1Bits = toBits(read1Sequences, bits);
+        this.read2Bits = toBits(read2Sequences, bits);
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    @Nullable
+    private long[] toBits(Collection<String> sequences, int bits) {
+        if (sequences.isEmpty()) {
+            return null;
+        }
+
+        long[] ret = new long[bits / 64];
+        for (String seq : sequences) {
+            //any k-mer of the sequence will do, since a read containing the sequence contains all of them
+            long hash = 0;
+            for (int i = 0; i < k; i++) {
+                hash = hash * HASH_BASE + seq.charAt(i);
+            }
+
+            int idx = index(hash);
+            ret[idx >>> 6] |= 1L << idx;
+        }
+
+        return ret;
+    }
+
+    private int index(long hash) {
+        return (int) ((hash * HASH_MIX) >>> shift);
+    }
+
+    /**
+     * @param read2 The second read, or null for single-end data
+     * @return False if neither read can match any expression
+     */
+    public boolean isCandidate(CharSequence read1, @Nullable CharSequence read2) {
+        return hasKmer(read1, read1Bits) || (read2 != null && hasKmer(read2, read2Bits));
+    }
+
+    private boolean hasKmer(CharSequence read, @Nullable long[] bitset) {
+        if (bitset == null || read.length() < k) {
+            return false;
+        }
+
+        long hash = 0;
+        for (int i = 0; i < read.length(); i++) {
+            hash = hash * HASH_BASE + read.charAt(i);
+            if (i >= k) {
+                hash -= removeFactor * read.charAt(i - k);
+            }
+
+            if (i >= k - 1) {
+                int idx = index(hash);
+                if ((bitset[idx >>> 6] & (1L << idx)) != 0) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
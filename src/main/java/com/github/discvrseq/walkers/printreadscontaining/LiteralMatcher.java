@@ -0,0 +1,174 @@
+package com.github.discvrseq.walkers.printreadscontaining;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the first occurrence of each of a set of literal sequences in a read using a single pass of an Aho-Corasick automaton, rather than one regular expression per sequence.
+ * The automaton is built as a complete transition table, so each character of the read costs one lookup irrespective of the number of sequences.
+ * Since every sequence has a fixed length, the first occurrence to end is also the first to start, so the positions reported match those of {@link java.util.regex.Matcher#find()}.
+ *
+ * Instances are immutable once built, and can be shared between threads.
+ */
+public class LiteralMatcher {
+    //expressions made only of letters and digits have no special meaning as regular expressions
+    private static final Pattern LITERAL = Pattern.compile("[A-Za-z0-9]+");
+
+    private final int[] lengths;
+
+    //characters are mapped to a small alphabet, with 0 used for any character not present in a sequence
+    private final int[] classByChar = new int[128];
+    private final int alphabetSize;
+
+    private final int[] transitions;
+    private final int[][] outputs;
+
+    /**
+     * @return True if this expression can be matched as a literal sequence
+     */
+    public static boolean isLiteral(String expression) {
+        return LITERAL.matcher(expression).matches();
+    }
+
+    /**
+     * @param sequences The literal sequences, each of which must satisfy {@link #isLiteral(String)}.  Sequences are identified by their index in this list.
+     */
+    public LiteralMatcher(List<String> sequences) {
+        lengths = new int[sequences.size()];
+
+        int nClasses = 1;
+        for (String seq : sequences) {
+            if (!isLiteral(seq)) {
+                throw new IllegalArgumentException("Not a literal sequence: " + seq);
+            }
+
+            for (int i = 0; i < seq.length(); i++) {
+                if (classByChar[seq.charAt(i)] == 0) {
+                    classByChar[seq.charAt(i)] = nClasses++;
+                }
+            }
+        }
+        alphabetSize = nClasses;
+
+        //build the trie, with state 0 as the root
+        List<int[]> children = new ArrayList<>();
+        List<int[]> matched = new ArrayList<>();
+        children.add(newState());
+        matched.add(new int[0]);
+        for (int idx = 0; idx < sequences.size(); idx++) {
+            String seq = sequences.get(idx);
+            lengths[idx] = seq.length();
+
+            int state = 0;
+            for (int i = 0; i < seq.length(); i++) {
+                int c = classByChar[seq.charAt(i)];
+                if (children.get(state)[c] == -1) {
+                    children.get(state)[c] = children.size();
+                    children.add(newState());
+                    matched.add(new int[0]);
+                }
+                state = children.get(state)[c];
+            }
+
+            int[] m = matched.get(state);
+            m = Arrays.copyOf(m, m.length + 1);
+            m[m.length - 1] = idx;
+            matched.set(state, m);
+        }
+
+        //fill in the failure transitions breadth-first, so each state's failure target is complete before it is used
+        int nStates = children.size();
+        transitions = new int[nStates * alphabetSize];
+        outputs = new int[nStates][];
+        int[] failure = new int[nStates];
+
+        Deque<Integer> queue = new ArrayDeque<>();
+        outputs[0] = matched.get(0);
+        for (int c = 0; c < alphabetSize; c++) {
+            int child = children.get(0)[c];
+            if (child == -1) {
+                transitions[c] = 0;
+            }
+            else {
+                transitions[c] = child;
+                failure[child] = 0;
+                queue.add(child);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            outputs[state] = concat(matched.get(state), outputs[failure[state]]);
+
+            for (int c = 0; c < alphabetSize; c++) {
+                int child = children.get(state)[c];
+                if (child == -1) {
+                    transitions[state * alphabetSize + c] = transitions[failure[state] * alphabetSize + c];
+                }
+                else {
+                    transitions[state * alphabetSize + c] = child;
+                    failure[child] = transitions[failure[state] * alphabetSize + c];
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    private int[] newState() {
+        int[] ret = new int[alphabetSize];
+        Arrays.fill(ret, -1);
+
+        return ret;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        else if (a.length == 0) {
+            return b;
+        }
+
+        int[] ret = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+
+        return ret;
+    }
+
+    public int getSequenceCount() {
+        return lengths.length;
+    }
+
+    /**
+     * Scans the read once, recording the start of the first occurrence of each sequence.
+     * @param starts Populated with the start of the first occurrence of each sequence, or -1 if not present.  This must have one element per sequence.
+     * @return The number of sequences found
+     */
+    public int findFirst(CharSequence read, int[] starts) {
+        Arrays.fill(starts, -1);
+
+        int found = 0;
+        int state = 0;
+        for (int i = 0; i < read.length(); i++) {
+            char ch = read.charAt(i);
+            state = transitions[state * alphabetSize + (ch < 128 ? classByChar[ch] : 0)];
+
+            for (int idx : outputs[state]) {
+                if (starts[idx] == -1) {
+                    starts[idx] = i + 1 - lengths[idx];
+                    found++;
+                }
+            }
+
+            if (found == starts.length) {
+                break;
+            }
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.discvrseq.walkers.printreadscontaining;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+import htsjdk.samtools.util.IOUtil;
+import org.broadinstitute.hellbender.exceptions.UserException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Aggregates the matches of each expression while streaming, using primitive counters rather than a row per read, so runs can report how often and where each expression matched
+ * without writing the per-read summary.  For each expression this counts the read pairs matched, the hits on the first and second read of each pair (not the strand of the match), and the number of hits starting at each position.
+ * Position counts are held in arrays grown to the furthest start seen.
+ *
+ * The files written by separate runs over parts of the same input, such as shards, can be read back and summed (see {@link #readSummary(File)}).
+ *
+ * Instances are not thread-safe, and matches should be added by a single thread.
+ */
+public class MatchStatistics {
+    private static final String[] SUMMARY_HEADER = new String[]{"ExpressionGroup", "ExpressionName", "Expression", "PairsInspected", "PairsMatched", "FractionOfPairs", "Read1Hits", "Read2Hits"};
+    private static final String[] START_POSITIONS_HEADER = new String[]{"ExpressionGroup", "ExpressionName", "Expression", "Start", "Read1Hits", "Read2Hits"};
+
+    private final List<ExpressionCounts> counts = new ArrayList<>();
+
+    private static class ExpressionCounts {
+        private final String group;
+        private final String name;
+        private final String expression;
+
+        private long pairsMatched = 0;
+        private long lastPair = -1;
+        private long read1Hits = 0;
+        private long read2Hits = 0;
+        private long[] read1Starts = new long[0];
+        private long[] read2Starts = new long[0];
+
+        private ExpressionCounts(String group, String name, String expression) {
+            this.group = group;
+            this.name = name;
+            this.expression = expression;
+        }
+    }
+
+    /**
+     * @param group The reads this expression is tested against, such as Read1
+     * @return The index of this expression, used when adding matches
+     */
+    public int addExpression(String group, String name, String expression) {
+        counts.add(new ExpressionCounts(group, name, expression));
+
+        return counts.size() - 1;
+    }
+
+    /**
+     * Records one match.  An expression matching both reads of a pair counts as one pair matched.
+     * @param expressionIdx The index returned by {@link #addExpression(String, String, String)}
+     * @param pairIdx An identifier for the read pair, which must be the same for all matches of a pair and must increase between pairs
+     * @param read1 True if the match is on the first (or only) read of the pair
+     * @param start The start of the match within the read
+     */
+    public void addMatch(int expressionIdx, long pairIdx, boolean read1, int start) {
+        ExpressionCounts c = counts.get(expressionIdx);
+        if (c.lastPair != pairIdx) {
+            c.pairsMatched++;
+            c.lastPair = pairIdx;
+        }
+
+        if (read1) {
+            c.read1Hits++;
+            c.read1Starts = increment(c.read1Starts, start);
+        }
+        else {
+            c.read2Hits++;
+            c.read2Starts = increment(c.read2Starts, start);
+        }
+    }
+
+    private static long[] increment(long[] values, int idx) {
+        return add(values, idx, 1);
+    }
+
+    private static long[] add(long[] values, int idx, long count) {
+        if (idx >= values.length) {
+            values = Arrays.copyOf(values, Math.max(idx + 1, values.length * 2));
+        }
+
+        values[idx] += count;
+
+        return values;
+    }
+
+    /**
+     * Writes one row per expression, with the pairs and hits matched.
+     * @param totalPairs The number of read pairs inspected
+     */
+    public void writeSummary(File output, long totalPairs) throws IOException {
+        try (CSVWriter writer = new CSVWriter(IOUtil.openFileForBufferedUtf8Writing(output), '\t', CSVWriter.NO_QUOTE_CHARACTER)) {
+            writer.writeNext(SUMMARY_HEADER);
+            for (ExpressionCounts c : counts) {
+                double fraction = totalPairs == 0 ? 0.0 : (double) c.pairsMatched / totalPairs;
+                writer.writeNext(new String[]{c.group, c.name, c.expression, String.valueOf(totalPairs), String.valueOf(c.pairsMatched), String.format(Locale.ROOT, "%.6f", fraction), String.valueOf(c.read1Hits), String.valueOf(c.read2Hits)});
+            }
+        }
+    }
+
+    /**
+     * Writes the histogram of match start positions, as one row per expression and position with at least one hit.
+     */
+    public void writeStartPositions(File output) throws IOException {
+        try (CSVWriter writer = new CSVWriter(IOUtil.openFileForBufferedUtf8Writing(output), '\t', CSVWriter.NO_QUOTE_CHARACTER)) {
+            writer.writeNext(START_POSITIONS_HEADER);
+            for (ExpressionCounts c : counts) {
+                int maxStart = Math.max(c.read1Starts.length, c.read2Starts.length);
+                for (int start = 0; start < maxStart; start++) {
+                    long read1 = start < c.read1Starts.length ? c.read1Starts[start] : 0;
+                    long read2 = start < c.read2Starts.length ? c.read2Starts[start] : 0;
+                    if (read1 > 0 || read2 > 0) {
+                        writer.writeNext(new String[]{c.group, c.name, c.expression, String.valueOf(start), String.valueOf(read1), String.valueOf(read2)});
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the counts of a file written by {@link #writeSummary(File, long)}.  If this holds no expressions, these are added in the order of the file,
+     * otherwise the file must hold the same expressions, as is the case for shards of one run.
+     * @return The number of read pairs inspected
+     */
+    public long readSummary(File input) throws IOException {
+        boolean addExpressions = counts.isEmpty();
+        long totalPairs = 0;
+        int rows = 0;
+        try (CSVReader reader = new CSVReader(IOUtil.openFileForBufferedUtf8Reading(input), '\t', CSVWriter.NO_QUOTE_CHARACTER)) {
+            assertHeader(reader.readNext(), SUMMARY_HEADER, input);
+
+            String[] line;
+            while ((line = reader.readNext()) != null) {
+                assertColumnCount(line, SUMMARY_HEADER, input);
+                int idx = addExpressions ? addExpression(line[0], line[1], line[2]) : getExpressionIdx(line[0], line[1], line[2], input);
+                ExpressionCounts c = counts.get(idx);
+                totalPairs = parseCount(line[3], input);
+                c.pairsMatched += parseCount(line[4], input);
+                c.read1Hits += parseCount(line[6], input);
+                c.read2Hits += parseCount(line[7], input);
+                rows++;
+            }
+        }
+
+        if (rows != counts.size()) {
+            throw new UserException.BadInput("The expressions in this file do not match those of the other files: " + input.getPath());
+        }
+
+        return totalPairs;
+    }
+
+    /**
+     * Adds the counts of a file written by {@link #writeStartPositions(File)}.  The expressions must already have been added, such as using {@link #readSummary(File)}.
+     */
+    public void readStartPositions(File input) throws IOException {
+        try (CSVReader reader = new CSVReader(IOUtil.openFileForBufferedUtf8Reading(input), '\t', CSVWriter.NO_QUOTE_CHARACTER)) {
+            assertHeader(reader.readNext(), START_POSITIONS_HEADER, input);
+
+            String[] line;
+            while ((line = reader.readNext()) != null) {
+                assertColumnCount(line, START_POSITIONS_HEADER, input);
+                ExpressionCounts c = counts.get(getExpressionIdx(line[0], line[1], line[2], input));
+                int start = (int) parseCount(line[3], input);
+                c.read1Starts = add(c.read1Starts, start, parseCount(line[4], input));
+                c.read2Starts = add(c.read2Starts, start, parseCount(line[5], input));
+            }
+        }
+    }
+
+    private int getExpressionIdx(String group, String name, String expression, File input) {
+        for (int i = 0; i < counts.size(); i++) {
+            ExpressionCounts c = counts.get(i);
+            if (c.group.equals(group) && c.name.equals(name) && c.expression.equals(expression)) {
+                return i;
+            }
+        }
+
+        throw new UserException.BadInput("The expressions in this file do not match those of the other files: " + input.getPath());
+    }
+
+    private static void assertHeader(String[] line, String[] header, File input) {
+        if (!Arrays.equals(line, header)) {
+            throw new UserException.MalformedFile(input.toPath(), "Unexpected header, expected: " + String.join(", ", header));
+        }
+    }
+
+    private static void assertColumnCount(String[] line, String[] header, File input) {
+        if (line.length != header.length) {
+            throw new UserException.MalformedFile(input.toPath(), "Expected " + header.length + " columns, found: " + line.length);
+        }
+    }
+
+    private static long parseCount(String value, File input) {
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            throw new UserException.MalformedFile(input.toPath(), "Not a valid count: " + value);
+        }
+    }
+}
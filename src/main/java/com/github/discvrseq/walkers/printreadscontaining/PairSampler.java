@@ -0,0 +1,115 @@
+package com.github.discvrseq.walkers.printreadscontaining;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Keeps a uniform random sample of up to a fixed number of read pairs per expression, using reservoir sampling, so memory is bounded irrespective of the number of pairs matched.
+ * A pair sampled for several expressions is held once.  Sampled records are copied out of the chunk they were read from (see {@link FastqByteRecord#copy()}), so the input is not retained.
+ *
+ * Instances are not thread-safe, and pairs should be offered by a single thread.
+ */
+public class PairSampler {
+    private final int pairsPerExpression;
+    private final Random random;
+
+    private final SampledPair[][] reservoirs;
+    private final long[] seen;
+    private final long[] lastPair;
+
+    //the pair most recently offered, which is copied at most once
+    private long currentPairIdx = -1;
+    private SampledPair currentPair = null;
+
+    private static class SampledPair {
+        private final long pairIdx;
+        private final FastqByteRecord read1;
+        private final FastqByteRecord read2;
+
+        private SampledPair(long pairIdx, FastqByteRecord read1, @Nullable FastqByteRecord read2) {
+            this.pairIdx = pairIdx;
+            this.read1 = read1.copy();
+            this.read2 = read2 == null ? null : read2.copy();
+        }
+    }
+
+    public PairSampler(int expressionCount, int pairsPerExpression, Random random) {
+        this.pairsPerExpression = pairsPerExpression;
+        this.random = random;
+        this.reservoirs = new SampledPair[expressionCount][];
+        this.seen = new long[expressionCount];
+        this.lastPair = new long[expressionCount];
+        Arrays.fill(lastPair, -1);
+    }
+
+    /**
+     * Offers a pair matching an expression.  Offering the same pair again for an expression, such as when both reads match, has no effect.
+     * @param expressionIdx The index of the expression, less than the expression count
+     * @param pairIdx An identifier for the read pair, which must increase between pairs.  Sampled pairs are written in this order.
+     */
+    public void offer(int expressionIdx, long pairIdx, FastqByteRecord read1, @Nullable FastqByteRecord read2) {
+        if (lastPair[expressionIdx] == pairIdx) {
+            return;
+        }
+        lastPair[expressionIdx] = pairIdx;
+
+        long n = ++seen[expressionIdx];
+        int slot;
+        if (n <= pairsPerExpression) {
+            slot = (int) (n - 1);
+        }
+        else {
+            //the nth pair replaces a random member with probability pairsPerExpression / n
+            long r = (long) (random.nextDouble() * n);
+            if (r >= pairsPerExpression) {
+                return;
+            }
+
+            slot = (int) r;
+        }
+
+        if (reservoirs[expressionIdx] == null) {
+            reservoirs[expressionIdx] = new SampledPair[pairsPerExpression];
+        }
+
+        if (currentPairIdx != pairIdx) {
+            currentPairIdx = pairIdx;
+            currentPair = new SampledPair(pairIdx, read1, read2);
+        }
+
+        reservoirs[expressionIdx][slot] = currentPair;
+    }
+
+    /**
+     * Writes the distinct sampled pairs, in the order they were read.
+     * @return The number of pairs written
+     */
+    public long writeTo(OutputStream writer1, @Nullable OutputStream writer2) throws IOException {
+        Map<Long, SampledPair> pairs = new TreeMap<>();
+        for (SampledPair[] reservoir : reservoirs) {
+            if (reservoir == null) {
+                continue;
+            }
+
+            for (SampledPair pair : reservoir) {
+                if (pair != null) {
+                    pairs.put(pair.pairIdx, pair);
+                }
+            }
+        }
+
+        for (SampledPair pair : pairs.values()) {
+            pair.read1.writeTo(writer1);
+            if (writer2 != null) {
+                pair.read2.writeTo(writer2);
+            }
+        }
+
+        return pairs.size();
+    }
+}
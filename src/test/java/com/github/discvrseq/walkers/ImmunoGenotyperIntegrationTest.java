@@ -1,13 +1,18 @@
 package com.github.discvrseq.walkers;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.broadinstitute.hellbender.testutils.ArgumentsBuilder;
 import org.broadinstitute.hellbender.testutils.IntegrationTestSpec;
 import org.broadinstitute.hellbender.utils.io.IOUtils;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
 import static com.github.discvrseq.walkers.ImmunoGenotyper.*;
 
@@ -21,6 +26,69 @@ public class ImmunoGenotyperIntegrationTest extends BaseIntegrationTest {
         doTest("testBasicOperation", args, "ImmunoGenotyperOutput");
     }
 
+    @Test
+    public void testMultithreaded() throws Exception {
+        ArgumentsBuilder args = getBaseArgs();
+        args.add("--requireValidPair");
+        args.add("--threads");
+        args.add(4);
+
+        //the BAM would fit in one batch of the default size, so small batches are used to test merging many in input order
+        args.add("--readPairsPerBatch");
+        args.add(3);
+
+        doTest("testMultithreaded", args, "ImmunoGenotyperOutput");
+    }
+
+    @Test
+    public void testReadOutput() throws Exception {
+        doReadOutputTest("testReadOutput", 1);
+    }
+
+    @Test
+    public void testReadOutputMultithreaded() throws Exception {
+        //read names are recorded by the workers, so this should match the single-threaded output
+        doReadOutputTest("testReadOutputMultithreaded", 4);
+    }
+
+    private void doReadOutputTest(String name, int threads) throws Exception {
+        File readOutput = new File(normalizePath(getSafeNonExistentFile("ImmunoGenotyperOutput.reads.txt")));
+
+        ArgumentsBuilder args = getBaseArgs();
+        args.add("--requireValidPair");
+        args.add("--threads");
+        args.add(threads);
+        args.add("--readPairsPerBatch");
+        args.add(3);
+        args.add("--readOutput");
+        args.add(normalizePath(readOutput));
+
+        doTest(name, args, "ImmunoGenotyperOutput");
+
+        //the 4720 reads listed as Exported match the sum of TotalReads in ImmunoGenotyperOutput.genotypes.txt
+        IntegrationTestSpec.assertEqualTextFiles(readOutput, getTestFile("ImmunoGenotyperOutput.reads.txt"));
+    }
+
+    @Test
+    public void testCoordinateSorted() throws Exception {
+        ArgumentsBuilder args = getBaseArgs("ImmunoGenotyper.csort.bam");
+        args.add("--requireValidPair");
+        args.add("--maxAlignmentsInRam");
+        args.add(1000);
+
+        doTest("testCoordinateSorted", args, "ImmunoGenotyperOutput");
+    }
+
+    @Test
+    public void testSplitBySample() throws Exception {
+        ArgumentsBuilder args = getBaseArgs();
+        args.add("--requireValidPair");
+        args.add("--splitBySample");
+
+        //the input contains a single sample, so its outputs should match the unsplit run
+        doTest("testSplitBySample", args, "ImmunoGenotyperOutput", ".22642_RL8_Tetramer_Clone16");
+    }
+
     @Test
     public void testWithMismatches() throws Exception {
         ArgumentsBuilder args = getBaseArgs();
@@ -52,7 +120,49 @@ public class ImmunoGenotyperIntegrationTest extends BaseIntegrationTest {
         doTest("testWithoutRequireValidPair", args, "ImmunoGenotyperOutputNVP");
     }
 
+    @Test
+    public void testEstimateAbundance() throws Exception {
+        ArgumentsBuilder args = getBaseArgs();
+        args.add("-mmq");
+        args.add(0);
+        args.add("--minPctForRef");
+        args.add(0.001);
+
+        args.add("--minPctForExport");
+        args.add(0.001);
+
+        args.add("--estimateAbundance");
+        args.add("--threads");
+        args.add(2);
+
+        doTest("testEstimateAbundance", args, "ImmunoGenotyperOutputEM");
+    }
+
+    @Test
+    public void testMetricsFile() throws Exception {
+        File metricsFile = new File(normalizePath(getSafeNonExistentFile("ImmunoGenotyperMetrics.jsonl")));
+
+        ArgumentsBuilder args = getBaseArgs();
+        args.add("--requireValidPair");
+        args.add("--metricsFile");
+        args.add(normalizePath(metricsFile));
+
+        doTest("testMetricsFile", args, "ImmunoGenotyperOutput");
+
+        //timings vary, so only check the final line's counts, which match the summary
+        List<String> lines = Files.readAllLines(metricsFile.toPath());
+        JsonObject json = new JsonParser().parse(lines.get(lines.size() - 1)).getAsJsonObject();
+        Assert.assertEquals(json.get("phase").getAsString(), "complete");
+        Assert.assertEquals(json.get("readGroups").getAsLong(), 11669L);
+        Assert.assertEquals(json.get("readPairsWithHits").getAsLong(), 4848L);
+        Assert.assertEquals(json.get("samples").getAsInt(), 1);
+    }
+
     private void doTest(String name, ArgumentsBuilder args, String fn) throws Exception{
+        doTest(name, args, fn, "");
+    }
+
+    private void doTest(String name, ArgumentsBuilder args, String fn, String sampleSuffix) throws Exception{
         System.setProperty("java.io.tmpdir", getTmpDir());  //windows hack
         File outFile = new File(normalizePath(getSafeNonExistentFile(fn)));
         String outFilePrefix = normalizePath(outFile);
@@ -68,14 +178,22 @@ public class ImmunoGenotyperIntegrationTest extends BaseIntegrationTest {
 
         spec.executeTest(name, this);
 
-        for (String extention : Arrays.asList(GENOTYPE_EXTENSION, SUMMARY_EXTENSION, MISMATCH_EXTENSION)){
+        for (String extention : Arrays.asList(GENOTYPE_EXTENSION, SUMMARY_EXTENSION, MISMATCH_EXTENSION, ABUNDANCE_EXTENSION)){
             File expected = getTestFile(fn + extention);
-            File actual = IOUtils.getPath(outFilePrefix + extention).toFile();
+            if (extention.equals(ABUNDANCE_EXTENSION) && !expected.exists()){
+                continue;
+            }
+
+            File actual = IOUtils.getPath(outFilePrefix + sampleSuffix + extention).toFile();
             IntegrationTestSpec.assertEqualTextFiles(actual, expected);
         }
     }
 
     private ArgumentsBuilder getBaseArgs() throws Exception {
+        return getBaseArgs("ImmunoGenotyper.qsort.bam");
+    }
+
+    private ArgumentsBuilder getBaseArgs(String inputBam) throws Exception {
         ArgumentsBuilder args = new ArgumentsBuilder();
         args.add("-R");
 
@@ -83,7 +201,7 @@ public class ImmunoGenotyperIntegrationTest extends BaseIntegrationTest {
         args.add(normalizePath(fasta));
 
         args.add("-I");
-        args.add(normalizePath(new File(testBaseDir, "ImmunoGenotyper.qsort.bam")));
+        args.add(normalizePath(new File(testBaseDir, inputBam)));
 
         args.add("--referenceToLineageFile");
         args.add(normalizePath(new File(testBaseDir, "lineageMap.txt")));
@@ -0,0 +1,170 @@
+package com.github.discvrseq.walkers;
+
+import org.broadinstitute.hellbender.testutils.ArgumentsBuilder;
+import org.broadinstitute.hellbender.testutils.IntegrationTestSpec;
+import org.broadinstitute.hellbender.utils.io.IOUtils;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.github.discvrseq.walkers.ImmunoGenotyper.*;
+
+public class ImmunoGenotyperRefilterIntegrationTest extends BaseIntegrationTest {
+    @Test
+    public void testRefilter() throws Exception {
+        System.setProperty("java.io.tmpdir", getTmpDir());  //windows hack
+
+        //first run ImmunoGenotyper with the default filters, saving the hit table
+        String genotyperPrefix = normalizePath(getSafeNonExistentFile("ImmunoGenotyperDefaults"));
+        ArgumentsBuilder genotyperArgs = new ArgumentsBuilder();
+        genotyperArgs.add("-R");
+        genotyperArgs.add(normalizePath(new File(testBaseDir, "Rhesus_KIR_and_MHC_1.0.fasta")));
+        genotyperArgs.add("-I");
+        genotyperArgs.add(normalizePath(new File(testBaseDir, "ImmunoGenotyper.qsort.bam")));
+        genotyperArgs.add("-mmq");
+        genotyperArgs.add(0);
+        genotyperArgs.add("--writeHitTable");
+        genotyperArgs.add("-O");
+        genotyperArgs.add(genotyperPrefix);
+        genotyperArgs.add("--tmp-dir");
+        genotyperArgs.add(getTmpDir());
+        runCommandLine(genotyperArgs.getArgsList(), ImmunoGenotyper.class.getSimpleName());
+
+        //then re-filter using the options of ImmunoGenotyperIntegrationTest.testWithoutRequireValidPair, which should produce the same output
+        File outFile = new File(normalizePath(getSafeNonExistentFile("ImmunoGenotyperRefilter")));
+        String outFilePrefix = normalizePath(outFile);
+        ArgumentsBuilder args = new ArgumentsBuilder();
+        args.add("--hitTable");
+        args.add(genotyperPrefix + HIT_TABLE_EXTENSION);
+        args.add("--referenceToLineageFile");
+        args.add(normalizePath(new File(testBaseDir, "lineageMap.txt")));
+        args.add("--minPctForRef");
+        args.add(0.001);
+        args.add("--minPctForExport");
+        args.add(0.001);
+        args.add("-O");
+        args.add(outFilePrefix);
+
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Collections.emptyList());
+
+        spec.executeTest("testRefilter", this);
+
+        File expectedDir = new File(getTestDataDir(), "walkers/ImmunoGenotyper");
+        for (String extention : Arrays.asList(GENOTYPE_EXTENSION, SUMMARY_EXTENSION, MISMATCH_EXTENSION)){
+            File expected = new File(expectedDir, "ImmunoGenotyperOutputNVP" + extention);
+            File actual = IOUtils.getPath(outFilePrefix + extention).toFile();
+            IntegrationTestSpec.assertEqualTextFiles(actual, expected);
+        }
+    }
+
+    @Test
+    public void testMergeShards() throws Exception {
+        System.setProperty("java.io.tmpdir", getTmpDir());  //windows hack
+
+        //process the BAM as three shards, each writing a partial hit table
+        int shardCount = 3;
+        ArgumentsBuilder args = new ArgumentsBuilder();
+        for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+            String shardPrefix = normalizePath(getSafeNonExistentFile("ImmunoGenotyperShard" + shardIndex));
+            ArgumentsBuilder genotyperArgs = new ArgumentsBuilder();
+            genotyperArgs.add("-R");
+            genotyperArgs.add(normalizePath(new File(testBaseDir, "Rhesus_KIR_and_MHC_1.0.fasta")));
+            genotyperArgs.add("-I");
+            genotyperArgs.add(normalizePath(new File(testBaseDir, "ImmunoGenotyper.qsort.bam")));
+            genotyperArgs.add("-mmq");
+            genotyperArgs.add(0);
+            genotyperArgs.add("--shardCount");
+            genotyperArgs.add(shardCount);
+            genotyperArgs.add("--shardIndex");
+            genotyperArgs.add(shardIndex);
+            genotyperArgs.add("-O");
+            genotyperArgs.add(shardPrefix);
+            genotyperArgs.add("--tmp-dir");
+            genotyperArgs.add(getTmpDir());
+            runCommandLine(genotyperArgs.getArgsList(), ImmunoGenotyper.class.getSimpleName());
+
+            args.add("--hitTable");
+            args.add(shardPrefix + HIT_TABLE_EXTENSION);
+        }
+
+        //merging and filtering once should match the output of ImmunoGenotyperIntegrationTest.testWithoutRequireValidPair
+        File outFile = new File(normalizePath(getSafeNonExistentFile("ImmunoGenotyperMerged")));
+        String outFilePrefix = normalizePath(outFile);
+        args.add("--referenceToLineageFile");
+        args.add(normalizePath(new File(testBaseDir, "lineageMap.txt")));
+        args.add("--minPctForRef");
+        args.add(0.001);
+        args.add("--minPctForExport");
+        args.add(0.001);
+        args.add("-O");
+        args.add(outFilePrefix);
+
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Collections.emptyList());
+
+        spec.executeTest("testMergeShards", this);
+
+        File expectedDir = new File(getTestDataDir(), "walkers/ImmunoGenotyper");
+        for (String extention : Arrays.asList(GENOTYPE_EXTENSION, SUMMARY_EXTENSION, MISMATCH_EXTENSION)){
+            File expected = new File(expectedDir, "ImmunoGenotyperOutputNVP" + extention);
+            File actual = IOUtils.getPath(outFilePrefix + extention).toFile();
+            IntegrationTestSpec.assertEqualTextFiles(actual, expected);
+        }
+    }
+
+    @Test
+    public void testMergeUnsharded() throws Exception {
+        System.setProperty("java.io.tmpdir", getTmpDir());  //windows hack
+
+        //hit tables written without --shardCount, such as those of separate BAMs, are merged without checking shards
+        String genotyperPrefix = normalizePath(getSafeNonExistentFile("ImmunoGenotyperUnsharded"));
+        ArgumentsBuilder genotyperArgs = new ArgumentsBuilder();
+        genotyperArgs.add("-R");
+        genotyperArgs.add(normalizePath(new File(testBaseDir, "Rhesus_KIR_and_MHC_1.0.fasta")));
+        genotyperArgs.add("-I");
+        genotyperArgs.add(normalizePath(new File(testBaseDir, "ImmunoGenotyper.qsort.bam")));
+        genotyperArgs.add("-mmq");
+        genotyperArgs.add(0);
+        genotyperArgs.add("--writeHitTable");
+        genotyperArgs.add("-O");
+        genotyperArgs.add(genotyperPrefix);
+        genotyperArgs.add("--tmp-dir");
+        genotyperArgs.add(getTmpDir());
+        runCommandLine(genotyperArgs.getArgsList(), ImmunoGenotyper.class.getSimpleName());
+
+        //merging the table with itself doubles every count, but otherwise matches ImmunoGenotyperIntegrationTest.testWithoutRequireValidPair
+        File outFile = new File(normalizePath(getSafeNonExistentFile("ImmunoGenotyperMergedUnsharded")));
+        String outFilePrefix = normalizePath(outFile);
+        ArgumentsBuilder args = new ArgumentsBuilder();
+        args.add("--hitTable");
+        args.add(genotyperPrefix + HIT_TABLE_EXTENSION);
+        args.add("--hitTable");
+        args.add(genotyperPrefix + HIT_TABLE_EXTENSION);
+        args.add("--referenceToLineageFile");
+        args.add(normalizePath(new File(testBaseDir, "lineageMap.txt")));
+        args.add("--minPctForRef");
+        args.add(0.001);
+        args.add("--minPctForExport");
+        args.add(0.001);
+        args.add("-O");
+        args.add(outFilePrefix);
+
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Collections.emptyList());
+
+        spec.executeTest("testMergeUnsharded", this);
+
+        File expectedDir = new File(getTestDataDir(), "walkers/ImmunoGenotyper");
+        for (String extention : Arrays.asList(GENOTYPE_EXTENSION, SUMMARY_EXTENSION, MISMATCH_EXTENSION)){
+            File expected = new File(expectedDir, "ImmunoGenotyperOutputMerged" + extention);
+            File actual = IOUtils.getPath(outFilePrefix + extention).toFile();
+            IntegrationTestSpec.assertEqualTextFiles(actual, expected);
+        }
+    }
+}
@@ -5,8 +5,13 @@ import org.broadinstitute.hellbender.testutils.IntegrationTestSpec;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 public class MergeFastqReadsIntegrationTest extends BaseIntegrationTest {
     @Test
@@ -61,4 +66,75 @@ public class MergeFastqReadsIntegrationTest extends BaseIntegrationTest {
 
         spec.executeTest("mergeTestWithMinLength", this);
     }
+
+    @Test
+    public void mergeTestMultithreaded() throws IOException {
+        ArgumentsBuilder args = new ArgumentsBuilder();
+
+        args.add("-fq1");
+        File fq1 = new File(new File(getToolTestDataDir()).getParentFile(), "PrintReadsContaining/fq1.fastq");
+        args.add(normalizePath(fq1));
+
+        args.add("-fq2");
+        File fq2 = new File(new File(getToolTestDataDir()).getParentFile(), "PrintReadsContaining/fq2.fastq");
+        args.add(normalizePath(fq2));
+
+        args.add("-O");
+        args.add("%s");
+
+        args.add("--minLength");
+        args.add("100");
+
+        args.add("--threads");
+        args.add(3);
+
+        //the 19 pairs form 10 batches, more than can be pending with 3 threads
+        args.add("--readPairsPerBatch");
+        args.add(2);
+
+        args.add("--tmp-dir");
+        args.add(getTmpDir());
+
+        //the output should be identical to single-threaded mode
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Arrays.asList(getTestFile("mergeTestWithMinLength.fastq").getPath()));
+
+        spec.executeTest("mergeTestMultithreaded", this);
+    }
+
+    @Test
+    public void mergeTestWithCompressedOutput() throws IOException {
+        ArgumentsBuilder args = new ArgumentsBuilder();
+
+        args.add("-fq1");
+        File fq1 = new File(new File(getToolTestDataDir()).getParentFile(), "PrintReadsContaining/fq1.fastq");
+        args.add(normalizePath(fq1));
+
+        args.add("-fq2");
+        File fq2 = new File(new File(getToolTestDataDir()).getParentFile(), "PrintReadsContaining/fq2.fastq");
+        args.add(normalizePath(fq2));
+
+        File output = createTempFile("mergeTestWithCompressedOutput", ".fastq.gz");
+        args.add("-O");
+        args.add(normalizePath(output));
+
+        args.add("--threads");
+        args.add(2);
+
+        args.add("--compressionLevel");
+        args.add(1);
+
+        args.add("--tmp-dir");
+        args.add(getTmpDir());
+
+        runCommandLine(args);
+
+        File decompressed = createTempFile("mergeTestWithCompressedOutput", ".fastq");
+        try (InputStream in = new GZIPInputStream(new FileInputStream(output))) {
+            Files.copy(in, decompressed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        IntegrationTestSpec.assertEqualTextFiles(decompressed, getTestFile("basicMergeTest.fastq"));
+    }
 }
@@ -1,14 +1,28 @@
 package com.github.discvrseq.walkers;
 
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import org.broadinstitute.hellbender.testutils.ArgumentsBuilder;
 import org.broadinstitute.hellbender.testutils.IntegrationTestSpec;
+import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class PrintReadsContainingIntegrationTest extends BaseIntegrationTest {
     @DataProvider(name = "testExpressionsData")
@@ -69,6 +83,333 @@ public class PrintReadsContainingIntegrationTest extends BaseIntegrationTest {
         }
     }
 
+    @DataProvider(name = "testApproximateData")
+    public Object[][] testApproximateData() {
+        //each of these is a variant of the expression in test1, and should match the same reads
+        List<Object[]> tests = new ArrayList<>();
+        tests.add(new Object[]{"TGGTGAAACCCTGTCTCA", new String[]{"--maxDistance", "1"}});
+        tests.add(new Object[]{"TGGTGAAACCTGTCTCT", new String[]{"--maxDistance", "1", "--allowIndels"}});
+        tests.add(new Object[]{"AGAGACAGGGTTTCACCA", new String[]{"--includeReverseComplement"}});
+
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "testApproximateData")
+    public void testApproximateMatching(String expression, String[] extraArgs) throws IOException {
+        ArgumentsBuilder args = getBaseArgs(true);
+        args.add("-e");
+        args.add(expression);
+        Arrays.stream(extraArgs).forEach(args::add);
+
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Arrays.asList(getTestFile("test1_R1.fastq").getPath(), getTestFile("test1_R2.fastq").getPath()));
+
+        spec.executeTest("testApproximateMatching", this);
+    }
+
+    @DataProvider(name = "testPrefilterData")
+    public Object[][] testPrefilterData() {
+        //the k-mer prefilter should never change which reads match, whether or not it is used
+        List<Object[]> tests = new ArrayList<>();
+
+        //each of the three pieces allowing two differences is shorter than 8 bases, so the prefilter is not used
+        tests.add(new Object[]{"test1", new String[]{"-e", "TGGTGAAACCCTGTCTCA", "--maxDistance", "2"}});
+
+        //a regular expression that cannot be reduced to literal sequences, so the prefilter is not used
+        tests.add(new Object[]{"test1", new String[]{"-e", "TGGTGAAA[AC]CCTGTCTCT"}});
+
+        //an anchored literal, which requires the sequence without the anchors
+        tests.add(new Object[]{"test2", new String[]{"-e", "^CTTATCCTGTGGCTGCTTGA$"}});
+
+        //a literal tested against the first read and a regular expression against the second, so the prefilter is not used
+        tests.add(new Object[]{"test3", new String[]{"-e1", "TGGCTGGGATTACAGGC", "-e2", "GG[AC]AGGAG"}});
+        tests.add(new Object[]{"test4", new String[]{"-e1", "TGGCTGGGATTACAGGC", "-e2", "GG[AC]AGGAG", "--matchAllExpressions"}});
+
+        //literals tested against each read, so each read is prefiltered using its own expressions
+        tests.add(new Object[]{"test4", new String[]{"-e1", "TGGCTGGGATTACAGGC", "-e2", "CTAAGCAGGTTGTTTAATTTCC"}});
+        tests.add(new Object[]{"test5", new String[]{"-e1", "TGGCTGGGATTACAGGC", "-e2", "CTAAGCAGGTTGTTTAATTTCC", "--matchAllExpressions"}});
+
+        return tests.toArray(new Object[][]{});
+    }
+
+    @Test(dataProvider = "testPrefilterData")
+    public void testPrefilter(String testName, String[] extraArgs) throws IOException {
+        ArgumentsBuilder args = getBaseArgs(true);
+        Arrays.stream(extraArgs).forEach(args::add);
+
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Arrays.asList(getTestFile(testName + "_R1.fastq").getPath(), getTestFile(testName + "_R2.fastq").getPath()));
+
+        spec.executeTest("testPrefilter", this);
+    }
+
+    @Test
+    public void testStatistics() throws IOException {
+        ArgumentsBuilder args = new ArgumentsBuilder();
+        args.add("--fastq");
+        args.add(normalizePath(getTestFile("fq1.fastq")));
+        args.add("--fastq2");
+        args.add(normalizePath(getTestFile("fq2.fastq")));
+        args.add("--output");
+        args.add(normalizePath(createTempFile("testStatistics", "_R1.fastq")));
+        args.add("--output2");
+        args.add(normalizePath(createTempFile("testStatistics", "_R2.fastq")));
+        args.add("-e");
+        args.add("TGGTGAAACCCTGTCTCT");
+        args.add("-e1");
+        args.add("GATC");
+        args.add("-e1n");
+        args.add("FName1");
+        args.add("--statsFile");
+        args.add("%s");
+        args.add("--startPositionsFile");
+        args.add("%s");
+
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Arrays.asList(getTestFile("test1.stats.txt").getPath(), getTestFile("test1.startPositions.txt").getPath()));
+
+        spec.executeTest("testStatistics", this);
+    }
+
+    @Test
+    public void testCountOnly() throws IOException {
+        ArgumentsBuilder args = new ArgumentsBuilder();
+        args.add("--fastq");
+        args.add(normalizePath(getTestFile("fq1.fastq")));
+        args.add("--fastq2");
+        args.add(normalizePath(getTestFile("fq2.fastq")));
+        args.add("--countOnly");
+        args.add("-e");
+        args.add("TGGTGAAACCCTGTCTCT");
+        args.add("-e1");
+        args.add("GATC");
+        args.add("-e1n");
+        args.add("FName1");
+        args.add("--statsFile");
+        args.add("%s");
+
+        //the counts should be identical to those when writing reads
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Arrays.asList(getTestFile("test1.stats.txt").getPath()));
+
+        spec.executeTest("testCountOnly", this);
+    }
+
+    @Test
+    public void testSampling() throws IOException {
+        ArgumentsBuilder args = getBaseArgs(true);
+        args.add("-e");
+        args.add("TGGTGAAACCCTGTCTCT");
+        args.add("--samplePairsPerExpression");
+        args.add(10);
+
+        //there are fewer matches than the sample size, so all should be written in input order
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Arrays.asList(getTestFile("test1_R1.fastq").getPath(), getTestFile("test1_R2.fastq").getPath()));
+
+        spec.executeTest("testSampling", this);
+    }
+
+    @DataProvider(name = "testCompressedInputData")
+    public Object[][] testCompressedInputData() {
+        return new Object[][]{{true, 1}, {true, 4}, {false, 1}};
+    }
+
+    @Test(dataProvider = "testCompressedInputData")
+    public void testCompressedInput(boolean bgzf, int threads) throws IOException {
+        ArgumentsBuilder args = new ArgumentsBuilder();
+        args.add("--fastq");
+        args.add(normalizePath(compress(getTestFile("fq1.fastq"), bgzf)));
+        args.add("--fastq2");
+        args.add(normalizePath(compress(getTestFile("fq2.fastq"), bgzf)));
+        args.add("--output");
+        args.add("%s");
+        args.add("--output2");
+        args.add("%s");
+        args.add("--threads");
+        args.add(threads);
+        args.add("-e");
+        args.add("TGGTGAAACCCTGTCTCT");
+
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Arrays.asList(getTestFile("test1_R1.fastq").getPath(), getTestFile("test1_R2.fastq").getPath()));
+
+        spec.executeTest("testCompressedInput", this);
+    }
+
+    @DataProvider(name = "testNamedPipeInputData")
+    public Object[][] testNamedPipeInputData() {
+        return new Object[][]{{false}, {true}};
+    }
+
+    @Test(dataProvider = "testNamedPipeInputData")
+    public void testNamedPipeInput(boolean bgzf) throws Exception {
+        if (System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("windows")) {
+            throw new SkipException("Named pipes require a POSIX system");
+        }
+
+        //a pipe can only be opened once and cannot be positioned, so this checks the format is detected from the same stream that is read
+        File fastq1 = getTestFile("fq1.fastq");
+        File fastq2 = getTestFile("fq2.fastq");
+        ArgumentsBuilder args = new ArgumentsBuilder();
+        args.add("--fastq");
+        args.add(normalizePath(createNamedPipe(bgzf ? compress(fastq1, true) : fastq1)));
+        args.add("--fastq2");
+        args.add(normalizePath(createNamedPipe(bgzf ? compress(fastq2, true) : fastq2)));
+        args.add("--output");
+        args.add("%s");
+        args.add("--output2");
+        args.add("%s");
+        args.add("-e");
+        args.add("TGGTGAAACCCTGTCTCT");
+
+        IntegrationTestSpec spec = new IntegrationTestSpec(
+                args.getString(),
+                Arrays.asList(getTestFile("test1_R1.fastq").getPath(), getTestFile("test1_R2.fastq").getPath()));
+
+        spec.executeTest("testNamedPipeInput", this);
+    }
+
+    @Test
+    public void testShardedInput() throws IOException {
+        File fastq1 = compress(getTestFile("fq1.fastq"), true);
+        File fastq2 = compress(getTestFile("fq2.fastq"), true);
+        for (File fastq : Arrays.asList(fastq1, fastq2)) {
+            ArgumentsBuilder args = new ArgumentsBuilder();
+            args.add("--fastq");
+            args.add(normalizePath(fastq));
+            args.add("--recordsPerEntry");
+            args.add(4);
+            runCommandLine(args.getArgsList(), IndexFastq.class.getSimpleName());
+        }
+
+        int shardCount = 3;
+        ArgumentsBuilder mergeArgs = new ArgumentsBuilder();
+        for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+            File output1 = createTempFile("testShardedInput" + shardIndex, "_R1.fastq.gz");
+            File output2 = createTempFile("testShardedInput" + shardIndex, "_R2.fastq.gz");
+            File stats = createTempFile("testShardedInput" + shardIndex, ".stats.txt");
+            File startPositions = createTempFile("testShardedInput" + shardIndex, ".startPositions.txt");
+
+            ArgumentsBuilder args = getExpressionArgs(fastq1, fastq2);
+            args.add("--shardCount");
+            args.add(shardCount);
+            args.add("--shardIndex");
+            args.add(shardIndex);
+            args.add("--output");
+            args.add(normalizePath(output1));
+            args.add("--output2");
+            args.add(normalizePath(output2));
+            args.add("--statsFile");
+            args.add(normalizePath(stats));
+            args.add("--startPositionsFile");
+            args.add(normalizePath(startPositions));
+            runCommandLine(args);
+
+            mergeArgs.add("--fastq");
+            mergeArgs.add(normalizePath(output1));
+            mergeArgs.add("--fastq2");
+            mergeArgs.add(normalizePath(output2));
+            mergeArgs.add("--statsFile");
+            mergeArgs.add(normalizePath(stats));
+            mergeArgs.add("--startPositionsFile");
+            mergeArgs.add(normalizePath(startPositions));
+        }
+
+        File merged1 = createTempFile("testShardedInput", "_R1.fastq.gz");
+        File merged2 = createTempFile("testShardedInput", "_R2.fastq.gz");
+        File mergedStats = createTempFile("testShardedInput", ".stats.txt");
+        File mergedStartPositions = createTempFile("testShardedInput", ".startPositions.txt");
+        mergeArgs.add("--output");
+        mergeArgs.add(normalizePath(merged1));
+        mergeArgs.add("--output2");
+        mergeArgs.add(normalizePath(merged2));
+        mergeArgs.add("--outputStatsFile");
+        mergeArgs.add(normalizePath(mergedStats));
+        mergeArgs.add("--outputStartPositionsFile");
+        mergeArgs.add(normalizePath(mergedStartPositions));
+        runCommandLine(mergeArgs.getArgsList(), MergePrintReadsContainingShards.class.getSimpleName());
+
+        //the merged output should match that of a single unsharded run
+        File expected1 = createTempFile("testShardedInputExpected", "_R1.fastq");
+        File expected2 = createTempFile("testShardedInputExpected", "_R2.fastq");
+        ArgumentsBuilder args = getExpressionArgs(fastq1, fastq2);
+        args.add("--output");
+        args.add(normalizePath(expected1));
+        args.add("--output2");
+        args.add(normalizePath(expected2));
+        runCommandLine(args);
+
+        IntegrationTestSpec.assertEqualTextFiles(decompress(merged1), expected1);
+        IntegrationTestSpec.assertEqualTextFiles(decompress(merged2), expected2);
+        IntegrationTestSpec.assertEqualTextFiles(mergedStats, getTestFile("test1.stats.txt"));
+        IntegrationTestSpec.assertEqualTextFiles(mergedStartPositions, getTestFile("test1.startPositions.txt"));
+    }
+
+    private ArgumentsBuilder getExpressionArgs(File fastq1, File fastq2) {
+        ArgumentsBuilder args = new ArgumentsBuilder();
+        args.add("--fastq");
+        args.add(normalizePath(fastq1));
+        args.add("--fastq2");
+        args.add(normalizePath(fastq2));
+        args.add("-e");
+        args.add("TGGTGAAACCCTGTCTCT");
+        args.add("-e1");
+        args.add("GATC");
+        args.add("-e1n");
+        args.add("FName1");
+
+        return args;
+    }
+
+    private File decompress(File input) throws IOException {
+        File output = createTempFile(input.getName(), ".fastq");
+        try (InputStream in = new GZIPInputStream(new FileInputStream(input))) {
+            Files.copy(in, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        return output;
+    }
+
+    /**
+     * Creates a named pipe, and writes the input to it on a background thread once it is opened for reading.
+     */
+    private File createNamedPipe(File input) throws IOException, InterruptedException {
+        File pipe = createTempFile(input.getName(), ".pipe");
+        Assert.assertTrue(pipe.delete());
+
+        Process mkfifo = new ProcessBuilder("mkfifo", pipe.getPath()).inheritIO().start();
+        Assert.assertEquals(mkfifo.waitFor(), 0, "mkfifo failed");
+
+        Thread writer = new Thread(() -> {
+            try (OutputStream out = new FileOutputStream(pipe)) {
+                Files.copy(input.toPath(), out);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+
+        return pipe;
+    }
+
+    private File compress(File input, boolean bgzf) throws IOException {
+        File output = createTempFile(input.getName(), bgzf ? ".bgz" : ".gz");
+        try (OutputStream out = bgzf ? new BlockCompressedOutputStream(output) : new GZIPOutputStream(new FileOutputStream(output))) {
+            Files.copy(input.toPath(), out);
+        }
+
+        return output;
+    }
+
     private ArgumentsBuilder getBaseArgs(boolean paired) {
         ArgumentsBuilder args = new ArgumentsBuilder();
 
@@ -94,16 +435,29 @@ public class PrintReadsContainingIntegrationTest extends BaseIntegrationTest {
 
     @Test(dataProvider = "testExpressionsData")
     public void testExpressionsPairedWithSummary(String testName, String[] exprs, String[] r1Exprs, String[] r2Exprs, boolean matchAllExpressions, boolean paired) throws IOException {
-        _testExpressionsPairedWithSummaryAndNames(testName, exprs, r1Exprs, r2Exprs, matchAllExpressions, paired, false);
+        _testExpressionsPairedWithSummaryAndNames(testName, exprs, r1Exprs, r2Exprs, matchAllExpressions, paired, false, 1);
+    }
+
+    @Test(dataProvider = "testExpressionsData")
+    public void testExpressionsPairedMultithreaded(String testName, String[] exprs, String[] r1Exprs, String[] r2Exprs, boolean matchAllExpressions, boolean paired) throws IOException {
+        _testExpressionsPairedWithSummaryAndNames(testName, exprs, r1Exprs, r2Exprs, matchAllExpressions, paired, false, 4);
     }
 
     @Test(dataProvider = "testExpressionsData")
     public void testExpressionsPairedWithSummaryAndNames(String testName, String[] exprs, String[] r1Exprs, String[] r2Exprs, boolean matchAllExpressions, boolean paired) throws IOException {
-        _testExpressionsPairedWithSummaryAndNames(testName, exprs, r1Exprs, r2Exprs, matchAllExpressions, paired, true);
+        _testExpressionsPairedWithSummaryAndNames(testName, exprs, r1Exprs, r2Exprs, matchAllExpressions, paired, true, 1);
     }
 
-    public void _testExpressionsPairedWithSummaryAndNames(String testName, String[] exprs, String[] r1Exprs, String[] r2Exprs, boolean matchAllExpressions, boolean paired, boolean addNames) throws IOException {
+    public void _testExpressionsPairedWithSummaryAndNames(String testName, String[] exprs, String[] r1Exprs, String[] r2Exprs, boolean matchAllExpressions, boolean paired, boolean addNames, int threads) throws IOException {
         ArgumentsBuilder args = getBaseArgs(paired);
+        if (threads > 1) {
+            args.add("--threads");
+            args.add(threads);
+
+            //the 19 pairs form 10 batches, more than can be pending with 4 threads
+            args.add("--readPairsPerBatch");
+            args.add(2);
+        }
 
         if (exprs != null) {
             Arrays.stream(exprs).forEach(x -> {